@@ -0,0 +1,29 @@
+package net.kanstren.littlepos.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+/**
+ * Runs the benchmarks with the GC profiler, so the results show the allocation rate per operation next to the time.
+ * Takes an optional regular expression for the benchmarks to run (default all),
+ * and an optional file name to write the results to as JSON, to compare against later runs.
+ *
+ * @author Teemu Kanstren
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName()+".*";
+    OptionsBuilder options = new OptionsBuilder();
+    options.include(include);
+    options.addProfiler(GCProfiler.class);
+    if (args.length > 1) {
+      options.resultFormat(ResultFormatType.JSON);
+      options.result(args[1]);
+    }
+    Options built = options.build();
+    new Runner(built).run();
+  }
+}
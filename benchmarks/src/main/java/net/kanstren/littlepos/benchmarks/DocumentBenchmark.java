@@ -0,0 +1,73 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.DocumentTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tagging a 1000 sentence document into "word tag" lines, by reading lines and calling tag() for each,
+ * compared to streaming it through the DocumentTagger.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class DocumentBenchmark {
+  private String document;
+  private DocumentTagger documentTagger;
+
+  @Setup
+  public void setup(TrainedTagger trained) {
+    StringBuilder text = new StringBuilder();
+    for (TagSentence sentence : trained.corpus.sentences(1000)) {
+      text.append(SyntheticCorpus.text(sentence)).append('\n');
+    }
+    document = text.toString();
+    documentTagger = trained.frozen.documentTagger();
+  }
+
+  @Benchmark
+  public int tagLines(TrainedTagger trained) throws IOException {
+    StringWriter out = new StringWriter(document.length() * 2);
+    BufferedReader in = new BufferedReader(new StringReader(document));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] words = line.split(" ");
+      String[] tags = trained.frozen.tag(line).tagArray();
+      for (int i = 0 ; i < words.length ; i++) {
+        out.write(words[i]);
+        out.write(' ');
+        out.write(tags[i]);
+        out.write('\n');
+      }
+      out.write('\n');
+    }
+    return out.getBuffer().length();
+  }
+
+  @Benchmark
+  public int tagDocument() throws IOException {
+    StringWriter out = new StringWriter(document.length() * 2);
+    documentTagger.tag(new StringReader(document), out);
+    return out.getBuffer().length();
+  }
+}
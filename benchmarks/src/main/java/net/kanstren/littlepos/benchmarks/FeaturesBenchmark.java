@@ -0,0 +1,50 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.Features;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feature extraction for each word of a sentence. Reported per word.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class FeaturesBenchmark {
+  private static final int WORDS = 20;
+  private final Features features = new Features();
+  private String[] context;
+
+  @Setup
+  public void setup() {
+    String[] words = new SyntheticCorpus(TrainedTagger.SEED).sentence(WORDS).wordArray();
+    context = PerceptronTagger.createContext(PerceptronTagger.normalize(words));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WORDS)
+  public void extract(Blackhole blackhole) {
+    for (int i = 2 ; i < WORDS + 2 ; i++) {
+      //previous tags vary over the sentence in tagging, use the neighbouring words in their place here
+      blackhole.consume(features.extract(i, context[i], context, context[i - 1], context[i - 2]).idAt(0));
+    }
+  }
+}
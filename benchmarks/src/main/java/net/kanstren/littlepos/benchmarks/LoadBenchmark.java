@@ -0,0 +1,61 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.persist.PBReader;
+import net.kanstren.littlepos.persist.PBStreamReader;
+import net.kanstren.littlepos.persist.PBStreamWriter;
+import net.kanstren.littlepos.persist.PBWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a stored model from file, in the single message and the streamed protobuf formats.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class LoadBenchmark {
+  private File pbFile;
+  private File streamFile;
+
+  @Setup
+  public void setup(TrainedTagger trained) throws Exception {
+    pbFile = File.createTempFile("benchmark-model", ".pb");
+    streamFile = File.createTempFile("benchmark-model", ".pbs");
+    new PBWriter(trained.tagger).writeToFile(pbFile.getPath());
+    new PBStreamWriter(trained.tagger).writeToFile(streamFile.getPath());
+  }
+
+  @TearDown
+  public void tearDown() {
+    pbFile.delete();
+    streamFile.delete();
+  }
+
+  @Benchmark
+  public PerceptronTagger readFrom() throws Exception {
+    return PBReader.readFrom(pbFile.getPath());
+  }
+
+  @Benchmark
+  public PerceptronTagger readStreamed() throws Exception {
+    return PBStreamReader.readFrom(streamFile.getPath());
+  }
+}
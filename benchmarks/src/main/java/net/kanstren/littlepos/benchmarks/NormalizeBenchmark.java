@@ -0,0 +1,40 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Normalizing the words of a 20 word sentence, with a mix of words, numbers and punctuation.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class NormalizeBenchmark {
+  private String[] words;
+
+  @Setup
+  public void setup() {
+    words = new SyntheticCorpus(TrainedTagger.SEED).sentence(20).wordArray();
+  }
+
+  @Benchmark
+  public String[] normalize() {
+    return PerceptronTagger.normalize(words);
+  }
+}
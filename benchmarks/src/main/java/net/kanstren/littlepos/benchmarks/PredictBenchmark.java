@@ -0,0 +1,63 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.AveragedPerceptron;
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weight lookup and scoring in AveragedPerceptron.predict, with the features already extracted. Reported per word.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class PredictBenchmark {
+  private static final int WORDS = 20;
+  private AveragedPerceptron model;
+  private final Features[] features = new Features[WORDS];
+
+  @Setup
+  public void setup(TrainedTagger trained) {
+    //the model is not exposed by the tagger, so take it through the stored form
+    Perceptron.PerceptronModel.Builder pb = Perceptron.PerceptronModel.newBuilder();
+    trained.tagger.buildPB(pb);
+    model = new AveragedPerceptron();
+    model.initFromPB(pb.build());
+    TagSentence sentence = trained.corpus.sentence(WORDS);
+    String[] context = PerceptronTagger.createContext(PerceptronTagger.normalize(sentence.wordArray()));
+    String[] tags = sentence.tagArray();
+    for (int i = 0 ; i < WORDS ; i++) {
+      String prev1 = i > 0 ? tags[i - 1] : context[1];
+      String prev2 = i > 1 ? tags[i - 2] : context[0];
+      features[i] = new Features().extract(i + 2, context[i + 2], context, prev1, prev2);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WORDS)
+  public void predict(Blackhole blackhole) {
+    for (Features wordFeatures : features) {
+      blackhole.consume(model.predict(wordFeatures));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a Finnish-like tagged corpus from a fixed seed, so the benchmarks run on the same data everywhere.
+ * Words are built from syllables with tag specific suffixes, some words share stems across tags,
+ * and a small share of tags are random noise, so the tagger has something to learn but does not get everything right.
+ *
+ * @author Teemu Kanstren
+ */
+public class SyntheticCorpus {
+  private static final String[] TAGS = {"NOUN", "VERB", "ADJ", "ADV", "PRON", "ADP", "CONJ", "NUM", "PUNCT"};
+  private static final String[] SYLLABLES = {"ka", "ta", "li", "mo", "ne", "su", "ra", "pe", "vi", "ho", "ju", "ä", "ö"};
+  private static final String[][] SUFFIXES = {
+      {"ssa", "lla", "n", "t", "sta"}, {"a", "i", "vat", "mme", "ttiin"}, {"inen", "ea", "kas"}, {"sti", "in"}};
+  private static final String[] PUNCTUATION = {".", "!", "?", ","};
+  /** Tag sequences the sentences are built from, as indices into TAGS. The last one (PUNCT) is only used at the end. */
+  private static final int[][] PATTERNS = {{4, 1, 0}, {2, 0, 1, 3}, {0, 1, 5, 0, 6, 0}, {7, 0, 1}, {4, 3, 1, 2, 0}};
+  private final Random random;
+  /** Stems for each tag. */
+  private final List<List<String>> stems = new ArrayList<>();
+
+  /**
+   * @param seed For the random generator. Same seed gives the same corpus.
+   */
+  public SyntheticCorpus(long seed) {
+    random = new Random(seed);
+    int[] stemCounts = {400, 400, 400, 400, 8, 10, 5, 0, 0};
+    for (int tag = 0 ; tag < TAGS.length ; tag++) {
+      List<String> tagStems = new ArrayList<>();
+      for (int i = 0 ; i < stemCounts[tag] ; i++) {
+        tagStems.add(stem());
+      }
+      stems.add(tagStems);
+    }
+    //shared stems make the same word have different tags, so context matters
+    stems.get(1).addAll(stems.get(0).subList(0, 150));
+    stems.get(2).addAll(stems.get(1).subList(0, 100));
+    stems.get(3).addAll(stems.get(2).subList(0, 60));
+  }
+
+  private String stem() {
+    StringBuilder stem = new StringBuilder();
+    int syllables = 1 + random.nextInt(3);
+    for (int i = 0 ; i < syllables ; i++) {
+      stem.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+    }
+    return stem.toString();
+  }
+
+  /**
+   * @param count Number of sentences to generate.
+   * @return Sentences of 4 to 7 words.
+   */
+  public List<TagSentence> sentences(int count) {
+    List<TagSentence> sentences = new ArrayList<>();
+    for (int i = 0 ; i < count ; i++) {
+      int[] pattern = PATTERNS[random.nextInt(PATTERNS.length)];
+      sentences.add(sentence(pattern.length + 1, pattern));
+    }
+    return sentences;
+  }
+
+  /**
+   * @param length Number of words in the sentence, including the punctuation at the end.
+   * @return Sentence built from the patterns, repeated as needed to get the length.
+   */
+  public TagSentence sentence(int length) {
+    return sentence(length, PATTERNS[random.nextInt(PATTERNS.length)]);
+  }
+
+  private TagSentence sentence(int length, int[] pattern) {
+    TagSentence sentence = new TagSentence();
+    for (int i = 0 ; i < length - 1 ; i++) {
+      int tag = pattern[i % pattern.length];
+      sentence.add(new WordTag(word(tag), noisy(tag)));
+    }
+    sentence.add(new WordTag(PUNCTUATION[random.nextInt(PUNCTUATION.length)], noisy(8)));
+    return sentence;
+  }
+
+  private String word(int tag) {
+    if (tag == 7) {
+      return String.valueOf(random.nextBoolean() ? 1800 + random.nextInt(300) : random.nextInt(100_000));
+    }
+    List<String> tagStems = stems.get(tag);
+    String word = tagStems.get(random.nextInt(tagStems.size()));
+    if (tag < SUFFIXES.length) {
+      word += SUFFIXES[tag][random.nextInt(SUFFIXES[tag].length)];
+    }
+    if (random.nextInt(10) == 0) {
+      word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+    return word;
+  }
+
+  private String noisy(int tag) {
+    return TAGS[random.nextInt(100) < 3 ? random.nextInt(TAGS.length) : tag];
+  }
+
+  /**
+   * @param sentence Tagged sentence.
+   * @return The words of the sentence separated by spaces, as given to the tagger.
+   */
+  public static String text(TagSentence sentence) {
+    return String.join(" ", sentence.wordArray());
+  }
+}
@@ -0,0 +1,66 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.SentenceCache;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tagging a whole sentence, from the raw text to the tagged words, at different sentence lengths.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class TagBenchmark {
+  @Param({"5", "20", "80"})
+  public int words;
+  private String sentence;
+  /** Frozen tagger with the context score cache, which always hits here as the same sentence is tagged over again. */
+  private FrozenTagger cached;
+  /** Frozen tagger with the sentence cache, which also always hits. */
+  private FrozenTagger cachedSentence;
+
+  @Setup
+  public void setup(TrainedTagger trained) {
+    sentence = SyntheticCorpus.text(trained.corpus.sentence(words));
+    cached = trained.frozen.withContextCache(10_000);
+    cachedSentence = trained.frozen.withSentenceCache(new SentenceCache(1_000));
+  }
+
+  @Benchmark
+  public TagSentence tag(TrainedTagger trained) {
+    return trained.tagger.tag(sentence);
+  }
+
+  @Benchmark
+  public TagSentence tagFrozen(TrainedTagger trained) {
+    return trained.frozen.tag(sentence);
+  }
+
+  @Benchmark
+  public TagSentence tagCachedContext() {
+    return cached.tag(sentence);
+  }
+
+  @Benchmark
+  public TagSentence tagCachedSentence() {
+    return cachedSentence.tag(sentence);
+  }
+}
@@ -0,0 +1,54 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training a new tagger for a single iteration (epoch) over the synthetic corpus,
+ * including the word statistics and the final averaging.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class TrainBenchmark {
+  private List<TagSentence> corpus;
+  /** Training shuffles the sentences, so each run gets a fresh copy in the same order. */
+  private List<TagSentence> sentences;
+
+  @Setup
+  public void setup() {
+    corpus = new SyntheticCorpus(TrainedTagger.SEED).sentences(TrainedTagger.SENTENCES);
+  }
+
+  @Setup(Level.Invocation)
+  public void copy() {
+    sentences = new ArrayList<>(corpus);
+  }
+
+  @Benchmark
+  public PerceptronTagger trainEpoch() {
+    PerceptronTagger tagger = new PerceptronTagger();
+    tagger.train(sentences, 1, 1);
+    return tagger;
+  }
+}
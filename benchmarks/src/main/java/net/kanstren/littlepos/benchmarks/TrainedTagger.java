@@ -0,0 +1,36 @@
+package net.kanstren.littlepos.benchmarks;
+
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * A tagger trained on the synthetic corpus, shared by the benchmarks that need a model.
+ *
+ * @author Teemu Kanstren
+ */
+@State(Scope.Benchmark)
+public class TrainedTagger {
+  /** Seed for the corpus, so all runs train the same model. */
+  public static final long SEED = 42;
+  /** Number of training sentences. */
+  public static final int SENTENCES = 20_000;
+  public PerceptronTagger tagger;
+  public FrozenTagger frozen;
+  /** Generates further sentences with the same vocabulary as the training data. */
+  public SyntheticCorpus corpus;
+
+  @Setup
+  public void setup() {
+    corpus = new SyntheticCorpus(SEED);
+    List<TagSentence> sentences = corpus.sentences(SENTENCES);
+    tagger = new PerceptronTagger();
+    tagger.train(sentences);
+    frozen = tagger.freeze();
+  }
+}
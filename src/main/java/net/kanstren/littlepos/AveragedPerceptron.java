@@ -1,87 +1,331 @@
 package net.kanstren.littlepos;
 
-
+import com.google.protobuf.ByteString;
 import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.LongIntMap;
+import net.kanstren.littlepos.datamodel.Quantizer;
 import net.kanstren.littlepos.datamodel.TagScore;
 import net.kanstren.littlepos.generated.protobuf.Perceptron;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 
 /**
  * Part of sentence tagger, based on
  * http://honnibal.wordpress.com/2013/09/11/a-good-part-of-speechpos-tagger-in-about-200-lines-of-python/
  *
+ * The weights are stored in a single array of rows, one row per feature and one cell in the row per tag id.
+ * In the default mode, each feature id gets its own row as it is first seen in training.
+ * In hashed mode, the feature ids are hashed into a fixed number of rows.
+ * The bookkeeping for averaging the weights is kept in parallel arrays, with the same cell indices as the weights.
+ * After averaging, the weights from before averaging are kept as the raw weights, so training can be continued later.
+ *
  * @author Teemu Kanstren.
  */
-public class AveragedPerceptron {
+public class AveragedPerceptron implements TagPredictor {
   /** how many times we have processed a tag/feature pair, or how many instances have been processed */
   private int updateCount = 0;
-  /** the latest iteration where a tag+feature pair weight was updated. key = pair, value = iteration number. */
-  private Map<String, Integer> timeStamps = new HashMap<>();
-  /** key=feature id, value={key=tag, value=weight} */
-  private Map<String, Map<String, Double>> weights = new HashMap<>();
+  /** Tag names, sorted alphabetically. The index of a tag in this array is its tag id. */
+  private String[] tags = new String[0];
+  /** Key = tag name, value = tag id (index in the tags array). */
+  private final Map<String, Integer> tagIds = new HashMap<>();
+  /** Number of bits for the hashed feature table rows, or 0 if each feature has its own row (the default). */
+  private int hashBits = 0;
+  /** The weights. Cell for a feature and tag is row * number of tags + tag id. null if quantized. */
+  private double[] weights = new double[0];
+  /** Quantized weights, 1 or 2 bytes per cell in the format of Quantizer.encode(). Used instead of weights if quantized. */
+  private byte[] quantized = null;
+  /** Scale of the quantized weights of each row. null if not quantized. */
+  private float[] scales = null;
+  /** the latest update count where a tag+feature cell weight was updated. null if loaded without training state. */
+  private int[] timeStamps = new int[0];
   /** total weights for a tag for a given feature that it has had over time. used to calculate average weight at the end.
-  key = pair of tag+feature, value = total weight over iterations for this feature´+tag pair */
-  private Map<String, Double> totals = new HashMap<>();
+  value = total weight over iterations for this feature+tag cell, up to its timestamp. null if loaded without training state. */
+  private double[] totals = new double[0];
+  /** Weights from before averageWeights(), to continue training from. null if not averaged yet or no training state. */
+  private double[] rawWeights = null;
+  /** Key = feature id, value = row for the feature in weights. Not used in hashed mode. */
+  private LongIntMap featureRows = new LongIntMap();
+  /** Feature id for each row, in order of the rows. Not used in hashed mode. */
+  private long[] rowIds = new long[0];
+  /** Number of rows in use. Not used in hashed mode. */
+  private int rowCount = 0;
+  /** 0 if the weights are doubles, otherwise bits per quantized weight. See quantize(). */
+  private int quantizationBits = 0;
 
+  /**
+   * Create an empty model, to be filled by initFromPB().
+   */
   public AveragedPerceptron() {
   }
 
   /**
-   * Predict a tag from the given set of features.
+   * Create a model for training, with the given set of tags as the ones it can predict.
+   *
+   * @param tags All the tags seen in the training data.
+   */
+  public AveragedPerceptron(Collection<String> tags) {
+    initTags(tags);
+  }
+
+  /**
+   * Create a model for training, using the "hashing trick" for features.
+   * Instead of giving each feature its own row, features are hashed into a fixed size table of 2^hashBits rows.
+   * This keeps the model size fixed no matter how many features the training data has,
+   * at the cost of some features sharing weights when their hashes collide.
+   * The table takes (2^hashBits * number of tags) cells, with weight, timestamp and total for each.
+   *
+   * @param tags All the tags seen in the training data.
+   * @param hashBits Number of bits in the hash to use for table rows. 0 means each feature gets its own row.
+   */
+  public AveragedPerceptron(Collection<String> tags, int hashBits) {
+    initTags(tags);
+    initTable(hashBits, true);
+  }
+
+  /**
+   * @param hashBits Number of bits for hashed table rows, 0 for a row per feature.
+   * @param trainingState True to also allocate the timestamps and totals for training.
+   */
+  private void initTable(int hashBits, boolean trainingState) {
+    if (hashBits < 0 || hashBits > 30) {
+      throw new IllegalArgumentException("Hash bits should be between 0 and 30, was "+hashBits);
+    }
+    this.hashBits = hashBits;
+    if (hashBits == 0) return;
+    long cells = (1L << hashBits) * tags.length;
+    if (cells > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Hashed table of 2^"+hashBits+" rows for "+tags.length+" tags is too big.");
+    }
+    allocateWeights(1 << hashBits);
+    if (trainingState) {
+      timeStamps = new int[(int) cells];
+      totals = new double[(int) cells];
+    }
+    if (rawWeights != null) {
+      rawWeights = new double[(int) cells];
+    }
+  }
+
+  /**
+   * Allocate the weights for the given number of rows, quantized if the model is.
+   *
+   * @param rows Number of rows.
+   */
+  private void allocateWeights(int rows) {
+    int cells = rows * tags.length;
+    if (quantizationBits > 0) {
+      weights = null;
+      quantized = new byte[cells * (quantizationBits / 8)];
+      scales = new float[rows];
+    } else {
+      weights = new double[cells];
+      quantized = null;
+      scales = null;
+    }
+  }
+
+  /**
+   * @return True if this model has the timestamps and totals needed for training, false if loaded for inference only.
+   */
+  public boolean hasTrainingState() {
+    return timeStamps != null;
+  }
+
+  /**
+   * @return True if the raw weights from before averaging are available, so training can continue from them.
+   */
+  public boolean hasRawWeights() {
+    return rawWeights != null;
+  }
+
+  /**
+   * Drop the timestamps, totals and raw weights, after which the model can no longer be trained.
+   */
+  private void dropTrainingState() {
+    timeStamps = null;
+    totals = null;
+    rawWeights = null;
+  }
+
+  private void checkTrainingState() {
+    if (!hasTrainingState()) {
+      throw new IllegalStateException("Model was loaded for inference only, it cannot be trained.");
+    }
+  }
+
+  /**
+   * @return True if this model hashes features into a fixed size table, false if each feature has its own row.
+   */
+  public boolean isHashed() {
+    return hashBits > 0;
+  }
+
+  /**
+   * @param featureId Feature id to find the row for.
+   * @return Index of the first cell in the weight row for the feature, or -1 if the feature has no row.
+   */
+  private int rowStart(long featureId) {
+    if (isHashed()) {
+      return hashedRow(featureId, hashBits) * tags.length;
+    }
+    int row = featureRows.get(featureId);
+    return row < 0 ? -1 : row * tags.length;
+  }
+
+  /**
+   * @param featureId Feature id to find the row for.
+   * @param hashBits Number of bits in the hashed table rows.
+   * @return Row for the feature in a hashed mode table.
+   */
+  public static int hashedRow(long featureId, int hashBits) {
+    return (int) (featureId ^ (featureId >>> 32)) & ((1 << hashBits) - 1);
+  }
+
+  /**
+   * Find the row for given feature, adding a new row if the feature does not have one yet.
+   *
+   * @param featureId Feature id to find the row for.
+   * @return Index of the first cell in the weight row for the feature.
+   */
+  private int rowStartForUpdate(long featureId) {
+    int start = rowStart(featureId);
+    if (start >= 0) return start;
+    if (rowCount == rowIds.length) {
+      ensureRows(Math.max(1024, rowIds.length * 2));
+    }
+    int row = rowCount++;
+    rowIds[row] = featureId;
+    featureRows.put(featureId, row);
+    return row * tags.length;
+  }
+
+  /**
+   * Make sure there is space for the given number of rows, when each feature has its own row.
+   *
+   * @param capacity Number of rows to have space for.
+   */
+  private void ensureRows(int capacity) {
+    if (capacity <= rowIds.length) return;
+    rowIds = Arrays.copyOf(rowIds, capacity);
+    if (quantizationBits > 0) {
+      quantized = Arrays.copyOf(quantized, capacity * tags.length * (quantizationBits / 8));
+      scales = Arrays.copyOf(scales, capacity);
+    } else {
+      weights = Arrays.copyOf(weights, capacity * tags.length);
+    }
+    if (hasTrainingState()) {
+      timeStamps = Arrays.copyOf(timeStamps, capacity * tags.length);
+      totals = Arrays.copyOf(totals, capacity * tags.length);
+    }
+    if (rawWeights != null) {
+      rawWeights = Arrays.copyOf(rawWeights, capacity * tags.length);
+    }
+  }
+
+  /**
+   * Build the fixed tag id enumeration. Tags are sorted so that a lower tag id is also alphabetically first,
+   * which keeps the tie-breaking in prediction the same as sorting by tag name.
    *
-   * @param features To predict from.
-   * @return Highest scoring tag for the features. If there is a tie, its an alphabetic sort by tag name.
+   * @param tagNames The tags to enumerate.
    */
-  public TagScore predict(Features features) {
-    Map<String, Double> scores = new HashMap<>();
-    for (String fname : features.keys()) {
-      Map<String, Double> featureWeights = weights.get(fname);
-      if (featureWeights == null) {
+  private void initTags(Collection<String> tagNames) {
+    tags = new TreeSet<>(tagNames).toArray(new String[0]);
+    tagIds.clear();
+    for (int i = 0 ; i < tags.length ; i++) {
+      tagIds.put(tags[i], i);
+    }
+  }
+
+  /**
+   * @param tag The tag name to look up.
+   * @return Id of the given tag, or -1 if the tag is not known to this model.
+   */
+  public int tagId(String tag) {
+    Integer id = tagIds.get(tag);
+    return id == null ? -1 : id;
+  }
+
+  @Override
+  public int tagCount() {
+    return tags.length;
+  }
+
+  @Override
+  public boolean addScores(Features features, int from, int to, double[] scores) {
+    if (quantizationBits > 0) return addQuantizedScores(features, from, to, scores);
+    int tagCount = tags.length;
+    boolean found = false;
+    for (int f = from ; f < to ; f++) {
+      int start = rowStart(features.idAt(f));
+      if (start < 0) {
         continue; //never before seen features (not in training set) might be here?
       }
       //sum up all weights for all features for a tag. use those sums to pick highest scoring tag
-      for (String tag : featureWeights.keySet()) {
-        double score = scores.getOrDefault(tag, 0.0);
-        score += features.valueFor(fname) * featureWeights.get(tag);
-        scores.put(tag, score);
+      for (int tag = 0 ; tag < tagCount ; tag++) {
+        double weight = weights[start + tag];
+        scores[tag] += weight;
+        //in hashed mode every feature has a row, so only non-zero weights tell it has been seen
+        found |= weight != 0;
       }
     }
-    return getFirstMaxScore(scores);
+    return found;
   }
 
   /**
-   * Find the largest score in the given set (map) of tag scores, and return alphabetically (by tag name) first one of those.
-   *
-   * @param scores Key = tag name, value = tag score
-   * @return tag with highest score, if several have same then alphabetically sorted by tag name the first of those.
+   * Same as addScores() but from the quantized weights.
    */
-  public TagScore getFirstMaxScore(Map<String, Double> scores) {
+  private boolean addQuantizedScores(Features features, int from, int to, double[] scores) {
+    int tagCount = tags.length;
+    int bits = quantizationBits;
+    boolean found = false;
+    for (int f = from ; f < to ; f++) {
+      int start = rowStart(features.idAt(f));
+      if (start < 0) continue;
+      double scale = scales[start / tagCount];
+      for (int tag = 0 ; tag < tagCount ; tag++) {
+        int value = Quantizer.valueAt(quantized, start + tag, bits);
+        scores[tag] += value * scale;
+        found |= value != 0;
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public TagScore best(double[] scores, boolean found) {
     //e.g., a set of features never before seen? umm.. happened when the protobuf code was bugged and scores did not get saved. anyway left it here just in case
-    if (scores.size() == 0) {
-      return new TagScore("UNKNOWN", 0);
+    if (!found) {
+      return new TagScore(UNKNOWN, 0);
     }
+    return getFirstMaxScore(scores);
+  }
 
+  /**
+   * Find the largest score in the given tag scores, and return alphabetically (by tag name) first one of those.
+   *
+   * @param scores Tag scores, indexed by tag id.
+   * @return tag with highest score, if several have same then alphabetically sorted by tag name the first of those.
+   */
+  public TagScore getFirstMaxScore(double[] scores) {
     //this check seems unnecessary as updatecount can only be zero if nothing was trained and prediction is called. which makes no sense. any, lets keep it?? :)
     if (updateCount == 0) return new TagScore("", 0);
 
-    Map.Entry<String, Double> max = Collections.max(scores.entrySet(), Map.Entry.comparingByValue());
-
-    List<String> maxTags = new ArrayList<>();
-    for (Map.Entry<String, Double> entry : scores.entrySet()) {
-      if (entry.getValue().doubleValue() == max.getValue().doubleValue()) {
-        maxTags.add(entry.getKey());
+    //strict comparison keeps the first (lowest id) of equal scores, and tag ids are in alphabetical order
+    int max = 0;
+    for (int tag = 1 ; tag < scores.length ; tag++) {
+      if (scores[tag] > scores[max]) {
+        max = tag;
       }
     }
-    //finally sort all results and if there were several tags with even score, pick aplhabetically sorted first one for deterministic result
-    Collections.sort(maxTags);
-    String tag = maxTags.get(0);
-    //since all tags had same score, we can just pick any and use their score
-    return new TagScore(tag, max.getValue());
+    return new TagScore(tags[max], scores[max]);
   }
 
   /**
@@ -92,64 +336,343 @@ public class AveragedPerceptron {
    * @param features Features used in prediction.
    */
   public void update(String trueTag, String guessTag, Features features) {
+    checkTrainingState();
     updateCount++;
     if (trueTag.equals(guessTag)) return;
-    for (String fname : features.keys()) {
-      Map<String, Double> featureWeights = weights.computeIfAbsent(fname, fn -> new HashMap<>());
+    int trueId = tagId(trueTag);
+    //guess can also be "UNKNOWN" or "" if nothing was learned yet, which have no weights to decrease
+    int guessId = tagId(guessTag);
+    for (int f = 0 ; f < features.size() ; f++) {
+      long featureId = features.idAt(f);
+      int start = rowStartForUpdate(featureId);
       //increase score for true tag for the features
-      updateFeatureWeight(featureWeights, trueTag, fname, 1.0);
+      if (trueId >= 0) updateFeatureWeight(start + trueId, 1.0);
       //decrease score for guessed tag. note if guess is same as true, the weights stay the same. if wrong, this decreases and true increases.
-      updateFeatureWeight(featureWeights, guessTag, fname, -1.0);
+      if (guessId >= 0) updateFeatureWeight(start + guessId, -1.0);
     }
   }
 
   /**
    * Update weight for a feature for a given tag.
    *
-   * @param featureWeights Weights for the feature being updated. Key = tag name, value = weight for this feature for the key tag.
-   * @param tag The name of tag to update the feature weight for.
-   * @param fname Name of feature to update.
+   * @param cell Index of the weight for the feature and tag to update.
    * @param value To add to the current weights. Typically negative for wrong label, positive for correct label.
    */
-  public void updateFeatureWeight(Map<String, Double> featureWeights, String tag, String fname, double value) {
-    double w = featureWeights.getOrDefault(tag, 0.0);
-    String pair = tag + "::" + fname;
-    //update the update time for feature-tag pair to keep track of how long it has been at given value (for average calculation later)
-    int previousSeenUpdate = timeStamps.getOrDefault(pair, 0);
-    timeStamps.put(pair, updateCount);
-    int updatesAtThisValue = updateCount - previousSeenUpdate;
-    double total = totals.getOrDefault(pair, 0.0);
-    total += updatesAtThisValue * w;
-    //totals has the overall number for different tag-feature pairs to use for average calculation later
-    totals.put(pair, total);
-    featureWeights.put(tag, w + value);
+  public void updateFeatureWeight(int cell, double value) {
+    double w = weights[cell];
+    //the weight has been at its current value since its last update, add that to the total for average calculation later
+    int updatesAtThisValue = updateCount - timeStamps[cell];
+    totals[cell] += updatesAtThisValue * w;
+    //update the update time for feature-tag pair to keep track of how long it has been at given value
+    timeStamps[cell] = updateCount;
+    weights[cell] = w + value;
   }
 
   /**
    * Average the current weights over all the observed values in the runs.
    * The model training is run for several iterations to get this into a better average and lessen the
    * impact of the scores recorded at differen times.
+   * The weights before averaging are kept, call resumeTraining() to continue training from them.
    */
   public void averageWeights() {
-    Map<String, Map<String, Double>> newWeights = new HashMap<>();
-    for (String fname : weights.keySet()) {
-      Map<String, Double> featureWeights = weights.get(fname);
-      Map<String, Double> newFeatureWeights = new HashMap<>();
-      for (String tag : featureWeights.keySet()) {
-        String pair = tag + "::" + fname;
-        Double weight = featureWeights.get(tag);
-        //multiply current value by the times it has not been updated to get total for averaging
-        int previousSeenUpdate = timeStamps.getOrDefault(pair, 0);
-        int updatesAtThisValue = updateCount - previousSeenUpdate;
-        double total = totals.getOrDefault(pair, 0.0);
-        total += updatesAtThisValue * weight;
-        totals.put(pair, total);
-        double averaged = total / (double) (updateCount);
-        newFeatureWeights.put(tag, averaged);
+    checkTrainingState();
+    if (rawWeights != null) {
+      throw new IllegalStateException("Weights are already averaged, call resumeTraining() before training more.");
+    }
+    rawWeights = weights.clone();
+    int cells = isHashed() ? weights.length : rowCount * tags.length;
+    for (int cell = 0 ; cell < cells ; cell++) {
+      //multiply current value by the times it has not been updated to get total for averaging
+      int updatesAtThisValue = updateCount - timeStamps[cell];
+      double total = totals[cell] + updatesAtThisValue * weights[cell];
+      totals[cell] = total;
+      timeStamps[cell] = updateCount;
+      weights[cell] = total / (double) (updateCount);
+    }
+  }
+
+  /**
+   * Put back the weights from before averageWeights(), to continue training after it.
+   * The totals and timestamps already cover all the updates so far, so averaging again after more training
+   * gives the same result as if all the training was done in one go.
+   * If the model was stored without raw weights (older models), training continues from the averaged weights instead.
+   */
+  public void resumeTraining() {
+    checkTrainingState();
+    if (rawWeights != null) {
+      weights = rawWeights;
+      rawWeights = null;
+    }
+  }
+
+  /**
+   * Add tags for the model to predict, for continuing training on data that has tags not seen before.
+   * The tag ids are re-enumerated to keep them sorted, so all the weight rows are laid out again.
+   * Call this after resumeTraining().
+   *
+   * @param newTags Tags to add, the ones already in the model are ignored.
+   */
+  public void addTags(Collection<String> newTags) {
+    checkTrainingState();
+    if (rawWeights != null) {
+      throw new IllegalStateException("Weights are averaged, call resumeTraining() before adding tags.");
+    }
+    String[] oldTags = tags;
+    Set<String> allTags = new TreeSet<>(Arrays.asList(oldTags));
+    if (!allTags.addAll(newTags)) return;
+    int rows = isHashed() ? 1 << hashBits : rowIds.length;
+    if ((long) rows * allTags.size() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Table of "+rows+" rows for "+allTags.size()+" tags is too big.");
+    }
+    initTags(allTags);
+    int[] newIds = new int[oldTags.length];
+    for (int tag = 0 ; tag < oldTags.length ; tag++) {
+      newIds[tag] = tagIds.get(oldTags[tag]);
+    }
+    double[] newWeights = new double[rows * tags.length];
+    int[] newTimeStamps = new int[newWeights.length];
+    double[] newTotals = new double[newWeights.length];
+    for (int row = 0 ; row < rows ; row++) {
+      for (int tag = 0 ; tag < oldTags.length ; tag++) {
+        int oldCell = row * oldTags.length + tag;
+        int newCell = row * tags.length + newIds[tag];
+        newWeights[newCell] = weights[oldCell];
+        newTimeStamps[newCell] = timeStamps[oldCell];
+        newTotals[newCell] = totals[oldCell];
       }
-      newWeights.put(fname, newFeatureWeights);
     }
     weights = newWeights;
+    timeStamps = newTimeStamps;
+    totals = newTotals;
+  }
+
+  /**
+   * Create a full copy of this model, including the training state.
+   * Used to continue training without changing a model that may be shared with taggers from freeze().
+   *
+   * @return The copy.
+   */
+  public AveragedPerceptron copy() {
+    AveragedPerceptron copy = new AveragedPerceptron();
+    copy.updateCount = updateCount;
+    copy.tags = tags;
+    copy.tagIds.putAll(tagIds);
+    copy.hashBits = hashBits;
+    copy.weights = weights == null ? null : weights.clone();
+    copy.quantized = quantized == null ? null : quantized.clone();
+    copy.scales = scales == null ? null : scales.clone();
+    copy.timeStamps = timeStamps == null ? null : timeStamps.clone();
+    copy.totals = totals == null ? null : totals.clone();
+    copy.rawWeights = rawWeights == null ? null : rawWeights.clone();
+    copy.featureRows = new LongIntMap(featureRows);
+    copy.rowIds = rowIds.clone();
+    copy.rowCount = rowCount;
+    copy.quantizationBits = quantizationBits;
+    return copy;
+  }
+
+  /**
+   * @return Number of cells in use in the weight arrays.
+   */
+  private int usedCells() {
+    return isHashed() ? tableRows() * tags.length : rowCount * tags.length;
+  }
+
+  /**
+   * Create a copy of this model for training on a shard of the data in parallel with other copies.
+   * The copy starts with the current weights of this model, and fresh bookkeeping for averaging.
+   * Use mix() to combine the trained copies back into this model.
+   *
+   * @return The copy.
+   */
+  public AveragedPerceptron copyForShard() {
+    checkTrainingState();
+    AveragedPerceptron copy = new AveragedPerceptron();
+    copy.tags = tags;
+    copy.tagIds.putAll(tagIds);
+    copy.hashBits = hashBits;
+    copy.weights = weights.clone();
+    copy.timeStamps = new int[weights.length];
+    copy.totals = new double[weights.length];
+    copy.featureRows = new LongIntMap(featureRows);
+    copy.rowIds = rowIds.clone();
+    copy.rowCount = rowCount;
+    return copy;
+  }
+
+  /**
+   * Mix copies created with copyForShard() and trained in parallel back into this model (iterative parameter mixing).
+   * The weights of this model become the average of the shard weights, to start the next iteration from.
+   * The totals for averaging get the sums of weights over all updates in all shards,
+   * so averageWeights() in the end gives the average over all weights seen in all shards.
+   *
+   * @param shards The trained copies of this model.
+   */
+  public void mix(List<AveragedPerceptron> shards) {
+    double share = 1.0 / shards.size();
+    int tagCount = tags.length;
+    Arrays.fill(weights, 0, usedCells(), 0);
+    for (AveragedPerceptron shard : shards) {
+      int shardRows = shard.usedCells() / tagCount;
+      for (int row = 0 ; row < shardRows ; row++) {
+        //rows added in the shards are in different order, so map them by feature id
+        int start = isHashed() ? row * tagCount : rowStartForUpdate(shard.rowIds[row]);
+        int shardStart = row * tagCount;
+        for (int tag = 0 ; tag < tagCount ; tag++) {
+          int shardCell = shardStart + tag;
+          double shardWeight = shard.weights[shardCell];
+          weights[start + tag] += shardWeight * share;
+          totals[start + tag] += shard.totals[shardCell] + (shard.updateCount - shard.timeStamps[shardCell]) * shardWeight;
+        }
+      }
+      updateCount += shard.updateCount;
+    }
+    //all updates so far are now in the totals
+    Arrays.fill(timeStamps, 0, usedCells(), updateCount);
+  }
+
+  /**
+   * Set all weights smaller in magnitude than the threshold to zero, and remove the features left with only zero weights.
+   * Most averaged weights are tiny and make little difference in predictions, so this gives a much smaller model.
+   * Call this after training, as the timestamps and totals are dropped and the model cannot be trained further.
+   * In hashed mode the table size is fixed, so only the weights are zeroed.
+   *
+   * @param threshold Weights with absolute value below this are removed.
+   * @return Number of weights removed.
+   */
+  public int prune(double threshold) {
+    dropTrainingState();
+    //pruning is rare, so a quantized model is pruned as doubles and quantized again after
+    int bits = quantizationBits;
+    dequantize();
+    int pruned = 0;
+    int cells = usedCells();
+    for (int cell = 0 ; cell < cells ; cell++) {
+      if (weights[cell] != 0 && Math.abs(weights[cell]) < threshold) {
+        weights[cell] = 0;
+        pruned++;
+      }
+    }
+    if (!isHashed()) {
+      removeEmptyRows();
+    }
+    if (bits > 0) {
+      quantize(bits);
+    }
+    return pruned;
+  }
+
+  /**
+   * Remove rows with only zero weights, moving the rest to fill the gaps.
+   */
+  private void removeEmptyRows() {
+    int tagCount = tags.length;
+    LongIntMap rows = new LongIntMap(rowCount);
+    int kept = 0;
+    for (int row = 0 ; row < rowCount ; row++) {
+      if (isEmptyRow(row)) continue;
+      System.arraycopy(weights, row * tagCount, weights, kept * tagCount, tagCount);
+      rowIds[kept] = rowIds[row];
+      rows.put(rowIds[kept], kept);
+      kept++;
+    }
+    rowCount = kept;
+    featureRows = rows;
+    rowIds = Arrays.copyOf(rowIds, kept);
+    weights = Arrays.copyOf(weights, kept * tagCount);
+  }
+
+  private boolean isEmptyRow(int row) {
+    int start = row * tags.length;
+    if (quantizationBits == 0) return isZero(weights, start, tags.length);
+    int bytesPerWeight = quantizationBits / 8;
+    for (int i = start * bytesPerWeight ; i < (start + tags.length) * bytesPerWeight ; i++) {
+      if (quantized[i] != 0) return false;
+    }
+    return true;
+  }
+
+  private static boolean isZero(double[] values, int start, int length) {
+    for (int i = start ; i < start + length ; i++) {
+      if (values[i] != 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Quantize the weights into 8 or 16 bit integers, with a scale for each feature.
+   * The weights then take 1 or 2 bytes each in memory and when stored, instead of 8.
+   * Prediction uses the quantized weights from here on, so the model tags the same before and after storing.
+   * The timestamps and totals are dropped, so the model cannot be trained further.
+   *
+   * @param bits Bits per weight, 8 or 16.
+   */
+  public void quantize(int bits) {
+    Quantizer.checkBits(bits);
+    dropTrainingState();
+    dequantize();
+    int tagCount = tags.length;
+    //keep the allocated rows the same as the row ids
+    int rows = isHashed() ? tableRows() : rowIds.length;
+    double[] doubles = weights;
+    quantizationBits = bits;
+    allocateWeights(rows);
+    for (int row = 0 ; row < rows ; row++) {
+      int start = row * tagCount;
+      float scale = Quantizer.scale(doubles, start, tagCount, bits);
+      scales[row] = scale;
+      Quantizer.encode(doubles, start, tagCount, bits, scale, quantized, start * (bits / 8));
+    }
+  }
+
+  /**
+   * Turn quantized weights back into doubles, with the values they have after quantization. Nothing if not quantized.
+   */
+  private void dequantize() {
+    if (quantizationBits == 0) return;
+    int bits = quantizationBits;
+    int tagCount = tags.length;
+    byte[] values = quantized;
+    float[] rowScales = scales;
+    int rows = rowScales.length;
+    quantizationBits = 0;
+    allocateWeights(rows);
+    for (int cell = 0 ; cell < rows * tagCount ; cell++) {
+      weights[cell] = Quantizer.valueAt(values, cell, bits) * (double) rowScales[cell / tagCount];
+    }
+  }
+
+  /**
+   * @param cell The cell to get.
+   * @return Weight of the cell, from the quantized weights if quantized.
+   */
+  private double weight(int cell) {
+    if (quantizationBits == 0) return weights[cell];
+    return Quantizer.valueAt(quantized, cell, quantizationBits) * (double) scales[cell / tags.length];
+  }
+
+  /**
+   * @return Number of features with a weight row. In hashed mode, number of table rows with a non-zero weight.
+   */
+  public int featureCount() {
+    if (!isHashed()) return rowCount;
+    int count = 0;
+    for (int row = 0 ; row < tableRows() ; row++) {
+      if (!isEmptyRow(row)) count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return Number of non-zero weights.
+   */
+  public int weightCount() {
+    int count = 0;
+    int cells = usedCells();
+    for (int cell = 0 ; cell < cells ; cell++) {
+      if (weight(cell) != 0) count++;
+    }
+    return count;
   }
 
   /**
@@ -158,59 +681,369 @@ public class AveragedPerceptron {
    * @param pb to add the data to.
    */
   public void buildPB(Perceptron.PerceptronModel.Builder pb) {
+    buildPB(pb, false);
+  }
+
+  /**
+   * Build a protobuf binary with the model data.
+   * Inference only leaves out the timestamps and totals, which are only needed to continue training the model.
+   * A model loaded for inference only is always stored as inference only.
+   *
+   * @param pb to add the data to.
+   * @param inferenceOnly True to only add the weights, false to also add the training state.
+   */
+  public void buildPB(Perceptron.PerceptronModel.Builder pb, boolean inferenceOnly) {
+    inferenceOnly |= !hasTrainingState();
     pb.setUpdateCount(updateCount);
-    for (String pair : timeStamps.keySet()) {
-      Perceptron.TimeStamp stamp = Perceptron.TimeStamp.newBuilder()
-          .setPair(pair)
-          .setIteration(timeStamps.get(pair))
-          .build();
-      pb.addTimestamp(stamp);
-    }
-    for (String featureId : weights.keySet()) {
-      Perceptron.FeatureWeights.Builder fb = Perceptron.FeatureWeights.newBuilder();
-      fb.setFeatureId(featureId);
-      Map<String, Double> tagWeights = weights.get(featureId);
-      for (String tag : tagWeights.keySet()) {
-        Perceptron.TagWeight tagWeight = Perceptron.TagWeight.newBuilder()
-            .setTag(tag)
-            .setWeight(tagWeights.get(tag))
-            .build();
-        fb.addWeight(tagWeight);
+    pb.setHashBits(hashBits);
+    pb.addAllTagId(Arrays.asList(tags));
+    pb.setInferenceOnly(inferenceOnly);
+    pb.setQuantizationBits(quantizationBits);
+    pb.setRawWeights(!inferenceOnly && rawWeights != null);
+    if (isHashed()) {
+      buildHashedPB(pb, inferenceOnly);
+      return;
+    }
+    for (int row = 0 ; row < rowCount ; row++) {
+      Perceptron.FeatureWeights featureWeights = featureWeightsPB(row, inferenceOnly);
+      if (featureWeights != null) pb.addWeight(featureWeights);
+    }
+  }
+
+  /**
+   * Add the hashed table to protobuf, one message per row. Rows with all zero weights are left out.
+   *
+   * @param pb to add the data to.
+   * @param inferenceOnly True to leave out the timestamps and totals.
+   */
+  private void buildHashedPB(Perceptron.PerceptronModel.Builder pb, boolean inferenceOnly) {
+    for (int row = 0 ; row < tableRows() ; row++) {
+      Perceptron.HashedRow hashedRow = hashedRowPB(row, inferenceOnly);
+      if (hashedRow != null) pb.addHashedRow(hashedRow);
+    }
+  }
+
+  /**
+   * Build the header for storing the model as a stream of chunks.
+   *
+   * @param inferenceOnly True to only store the weights, false to also store the training state.
+   * @return The header to write before the chunks from buildChunks().
+   */
+  public Perceptron.ModelHeader buildHeaderPB(boolean inferenceOnly) {
+    return Perceptron.ModelHeader.newBuilder()
+        .setUpdateCount(updateCount)
+        .setHashBits(hashBits)
+        .addAllTagId(Arrays.asList(tags))
+        .setInferenceOnly(inferenceOnly || !hasTrainingState())
+        .setRowCount(isHashed() ? 0 : rowCount)
+        .setQuantizationBits(quantizationBits)
+        .setRawWeights(!inferenceOnly && rawWeights != null)
+        .build();
+  }
+
+  /**
+   * Give the weights as a stream of chunks, so the whole model never needs to be in a single protobuf message.
+   *
+   * @param inferenceOnly True to only give the weights, false to also give the training state.
+   * @param chunkSize Max number of weight rows per chunk.
+   * @param chunks Receives each chunk once it is built.
+   */
+  public void buildChunks(boolean inferenceOnly, int chunkSize, Consumer<Perceptron.ModelChunk> chunks) {
+    inferenceOnly |= !hasTrainingState();
+    Perceptron.ModelChunk.Builder chunk = Perceptron.ModelChunk.newBuilder();
+    int rows = isHashed() ? tableRows() : rowCount;
+    for (int row = 0 ; row < rows ; row++) {
+      if (isHashed()) {
+        Perceptron.HashedRow hashedRow = hashedRowPB(row, inferenceOnly);
+        if (hashedRow != null) chunk.addHashedRow(hashedRow);
+      } else {
+        Perceptron.FeatureWeights featureWeights = featureWeightsPB(row, inferenceOnly);
+        if (featureWeights != null) chunk.addWeight(featureWeights);
+      }
+      if (chunk.getHashedRowCount() + chunk.getWeightCount() >= chunkSize) {
+        chunks.accept(chunk.build());
+        chunk = Perceptron.ModelChunk.newBuilder();
       }
-      pb.addWeight(fb.build());
     }
-    for (String pair : totals.keySet()) {
-      Perceptron.PairWeight pairWeight = Perceptron.PairWeight.newBuilder()
-          .setPair(pair)
-          .setWeight(totals.get(pair))
-          .build();
-      pb.addTotal(pairWeight);
+    if (chunk.getHashedRowCount() + chunk.getWeightCount() > 0) {
+      chunks.accept(chunk.build());
     }
   }
 
+  /**
+   * @return Number of rows in the hashed table.
+   */
+  private int tableRows() {
+    return tags.length == 0 ? 0 : 1 << hashBits;
+  }
+
+  /**
+   * @param row The row of the feature to build.
+   * @param inferenceOnly True to leave out the timestamps and totals.
+   * @return The weights of the feature, or null if there is nothing to store for it.
+   */
+  private Perceptron.FeatureWeights featureWeightsPB(int row, boolean inferenceOnly) {
+    int tagCount = tags.length;
+    Perceptron.FeatureWeights.Builder fb = Perceptron.FeatureWeights.newBuilder();
+    fb.setFeatureHash(rowIds[row]);
+    if (quantizationBits > 0) {
+      if (isEmptyRow(row)) return null;
+      fb.setScale(scales[row]);
+      fb.setQuantizedWeight(quantizedRow(row));
+      return fb.build();
+    }
+    for (int tag = 0 ; tag < tagCount ; tag++) {
+      int cell = row * tagCount + tag;
+      //tags never updated for this feature are left out, they are zero by default when loading
+      if (weights[cell] == 0 && (inferenceOnly || (totals[cell] == 0 && rawWeight(cell) == 0))) continue;
+      Perceptron.TagWeight.Builder tagWeight = Perceptron.TagWeight.newBuilder()
+          .setTag(tags[tag])
+          .setWeight(weights[cell]);
+      if (!inferenceOnly) {
+        tagWeight.setTimestamp(timeStamps[cell]).setTotal(totals[cell]).setRawWeight(rawWeight(cell));
+      }
+      fb.addWeight(tagWeight.build());
+    }
+    if (inferenceOnly && fb.getWeightCount() == 0) return null;
+    return fb.build();
+  }
+
+  /**
+   * @param row The hashed table row to build.
+   * @param inferenceOnly True to leave out the timestamps and totals.
+   * @return The row, or null if there is nothing to store for it.
+   */
+  private Perceptron.HashedRow hashedRowPB(int row, boolean inferenceOnly) {
+    int tagCount = tags.length;
+    int start = row * tagCount;
+    //a row whose weights went back to zero still has totals for averaging
+    if (isEmptyRow(row) && (inferenceOnly || (isZero(totals, start, tagCount) && (rawWeights == null || isZero(rawWeights, start, tagCount))))) return null;
+    Perceptron.HashedRow.Builder hashedRow = Perceptron.HashedRow.newBuilder();
+    hashedRow.setRow(row);
+    if (quantizationBits > 0) {
+      hashedRow.setScale(scales[row]);
+      hashedRow.setQuantizedWeight(quantizedRow(row));
+      return hashedRow.build();
+    }
+    for (int cell = start ; cell < start + tagCount ; cell++) {
+      hashedRow.addWeight(weights[cell]);
+      if (inferenceOnly) continue;
+      hashedRow.addTimestamp(timeStamps[cell]);
+      hashedRow.addTotal(totals[cell]);
+      if (rawWeights != null) hashedRow.addRawWeight(rawWeights[cell]);
+    }
+    return hashedRow.build();
+  }
+
+  /**
+   * @param row The row to get.
+   * @return The quantized weights of the row, in the stored format.
+   */
+  private ByteString quantizedRow(int row) {
+    int rowBytes = tags.length * (quantizationBits / 8);
+    return ByteString.copyFrom(quantized, row * rowBytes, rowBytes);
+  }
+
+  /**
+   * @return The raw weight of the given cell, or 0 if there are no raw weights.
+   */
+  private double rawWeight(int cell) {
+    return rawWeights == null ? 0 : rawWeights[cell];
+  }
+
   /**
    * Reinit the model from previously stored protobuf.
+   * If the model was stored for inference only, the timestamps and totals are not allocated and the model cannot be trained.
    *
    * @param pb to read data from.
    */
   public void initFromPB(Perceptron.PerceptronModel pb) {
     updateCount = pb.getUpdateCount();
-    List<Perceptron.TimeStamp> pbTimeStamps = pb.getTimestampList();
-    for (Perceptron.TimeStamp stamp : pbTimeStamps) {
-      timeStamps.put(stamp.getPair(), stamp.getIteration());
+    quantizationBits = pb.getQuantizationBits();
+    if (pb.getHashBits() > 0) {
+      initHashedFromPB(pb);
+      return;
     }
     List<Perceptron.FeatureWeights> weightList = pb.getWeightList();
+    //older models may have tags in the weights that are not in the unique tag list (e.g., "UNKNOWN"), so collect both.
+    //inference only models have no unique tag list, but have the tag ids
+    Set<String> tagNames = new HashSet<>(pb.getUniqueTagList());
+    tagNames.addAll(pb.getTagIdList());
+    //older models also stored features by name instead of by id. the feature ids are the hashes of those names
+    boolean namedFeatures = false;
     for (Perceptron.FeatureWeights featureWeights : weightList) {
-      String featureId = featureWeights.getFeatureId();
-      List<Perceptron.TagWeight> tagWeightList = featureWeights.getWeightList();
-      for (Perceptron.TagWeight tagWeight : tagWeightList) {
-        Map<String, Double> localFeatureWeights = weights.computeIfAbsent(featureId, fn -> new HashMap<>());
-        localFeatureWeights.put(tagWeight.getTag(), tagWeight.getWeight());
+      namedFeatures |= !featureWeights.getFeatureId().isEmpty();
+      for (Perceptron.TagWeight tagWeight : featureWeights.getWeightList()) {
+        tagNames.add(tagWeight.getTag());
       }
     }
-    List<Perceptron.PairWeight> totalList = pb.getTotalList();
-    for (Perceptron.PairWeight pairWeight : totalList) {
-      totals.put(pairWeight.getPair(), pairWeight.getWeight());
+    initTags(tagNames);
+    allocateWeights(0);
+    if (pb.getInferenceOnly()) {
+      timeStamps = null;
+      totals = null;
+    }
+    rawWeights = pb.getRawWeights() && !pb.getInferenceOnly() ? new double[0] : null;
+    //allocate the rows once instead of growing them
+    ensureRows(weightList.size());
+    for (Perceptron.FeatureWeights featureWeights : weightList) {
+      long featureId = namedFeatures ? Features.hash(featureWeights.getFeatureId()) : featureWeights.getFeatureHash();
+      readFeatureWeights(featureId, featureWeights);
+    }
+    //older models kept the timestamps and totals in separate lists by tag+feature pair
+    for (Perceptron.TimeStamp stamp : pb.getTimestampList()) {
+      int cell = cellFromPB(stamp.getPair(), namedFeatures);
+      if (cell >= 0) timeStamps[cell] = stamp.getIteration();
+    }
+    for (Perceptron.PairWeight pairWeight : pb.getTotalList()) {
+      int cell = cellFromPB(pairWeight.getPair(), namedFeatures);
+      if (cell >= 0) totals[cell] = pairWeight.getWeight();
+    }
+  }
+
+  /**
+   * Set the weights of one feature from protobuf.
+   *
+   * @param featureId Id of the feature.
+   * @param featureWeights The stored weights of the feature.
+   */
+  private void readFeatureWeights(long featureId, Perceptron.FeatureWeights featureWeights) {
+    int start = rowStartForUpdate(featureId);
+    if (quantizationBits > 0) {
+      readQuantizedRow(start, featureWeights.getQuantizedWeight(), featureWeights.getScale());
+      return;
+    }
+    for (Perceptron.TagWeight tagWeight : featureWeights.getWeightList()) {
+      int cell = start + tagId(tagWeight.getTag());
+      weights[cell] = tagWeight.getWeight();
+      if (!hasTrainingState()) continue;
+      timeStamps[cell] = tagWeight.getTimestamp();
+      totals[cell] = tagWeight.getTotal();
+      if (rawWeights != null) rawWeights[cell] = tagWeight.getRawWeight();
+    }
+  }
+
+  /**
+   * Set the weights of one hashed table row from protobuf.
+   *
+   * @param row The stored row.
+   */
+  private void readHashedRow(Perceptron.HashedRow row) {
+    int tagCount = tags.length;
+    int start = row.getRow() * tagCount;
+    if (quantizationBits > 0) {
+      readQuantizedRow(start, row.getQuantizedWeight(), row.getScale());
+      return;
+    }
+    for (int tag = 0 ; tag < tagCount ; tag++) {
+      weights[start + tag] = row.getWeight(tag);
+      if (!hasTrainingState()) continue;
+      timeStamps[start + tag] = row.getTimestamp(tag);
+      totals[start + tag] = row.getTotal(tag);
+      if (rawWeights != null) rawWeights[start + tag] = row.getRawWeight(tag);
+    }
+  }
+
+  /**
+   * Keep the stored quantized weights of a row as they are, without decoding them.
+   *
+   * @param start Index of the first cell in the row.
+   * @param bytes The stored quantized weights.
+   * @param scale The stored scale of the row.
+   */
+  private void readQuantizedRow(int start, ByteString bytes, float scale) {
+    int bytesPerWeight = quantizationBits / 8;
+    if (bytes.size() != tags.length * bytesPerWeight) {
+      throw new IllegalArgumentException("Quantized row should have "+tags.length * bytesPerWeight+" bytes, had "+bytes.size());
+    }
+    bytes.copyTo(quantized, start * bytesPerWeight);
+    scales[start / tags.length] = scale;
+  }
+
+  /**
+   * Reinit the model from the header of a stored chunk stream. The weights are then added with initFromPB() for each chunk.
+   *
+   * @param header The header to read.
+   */
+  public void initFromPB(Perceptron.ModelHeader header) {
+    updateCount = header.getUpdateCount();
+    quantizationBits = header.getQuantizationBits();
+    hashBits = header.getHashBits();
+    //the stream has the tags in id order, so keep it instead of re-enumerating
+    tags = header.getTagIdList().toArray(new String[0]);
+    tagIds.clear();
+    for (int i = 0 ; i < tags.length ; i++) {
+      tagIds.put(tags[i], i);
+    }
+    timeStamps = null;
+    totals = null;
+    boolean trainingState = !header.getInferenceOnly();
+    rawWeights = trainingState && header.getRawWeights() ? new double[0] : null;
+    initTable(hashBits, trainingState);
+    if (!isHashed()) {
+      allocateWeights(0);
+      if (trainingState) {
+        timeStamps = new int[0];
+        totals = new double[0];
+      }
+      if (rawWeights != null) {
+        rawWeights = new double[0];
+      }
+      featureRows = new LongIntMap(header.getRowCount());
+      rowIds = new long[0];
+      rowCount = 0;
+      ensureRows(header.getRowCount());
+    }
+  }
+
+  /**
+   * Add the weights in a chunk of a stored chunk stream to the model. The header has to be read first.
+   *
+   * @param chunk The chunk to read.
+   */
+  public void initFromPB(Perceptron.ModelChunk chunk) {
+    for (Perceptron.FeatureWeights featureWeights : chunk.getWeightList()) {
+      readFeatureWeights(featureWeights.getFeatureHash(), featureWeights);
+    }
+    for (Perceptron.HashedRow row : chunk.getHashedRowList()) {
+      readHashedRow(row);
+    }
+  }
+
+  /**
+   * @param pair Tag+feature pair from older models, as "tag::feature".
+   * @param namedFeature True if the pair has the feature name instead of the feature id.
+   * @return Index of the weight cell for the pair, or -1 if the tag is not known.
+   */
+  private int cellFromPB(String pair, boolean namedFeature) {
+    int split = pair.indexOf("::");
+    int tag = tagId(pair.substring(0, split));
+    if (tag < 0) return -1;
+    String feature = pair.substring(split + 2);
+    long featureId = namedFeature ? Features.hash(feature) : Long.parseLong(feature);
+    return rowStartForUpdate(featureId) + tag;
+  }
+
+  /**
+   * Reinit a hashed mode model from previously stored protobuf.
+   *
+   * @param pb to read data from.
+   */
+  private void initHashedFromPB(Perceptron.PerceptronModel pb) {
+    //table rows are indexed by tag id, so keep the stored order instead of re-enumerating
+    List<String> tagIdList = pb.getTagIdList();
+    tags = tagIdList.toArray(new String[0]);
+    tagIds.clear();
+    for (int i = 0 ; i < tags.length ; i++) {
+      tagIds.put(tags[i], i);
+    }
+    boolean trainingState = !pb.getInferenceOnly();
+    timeStamps = null;
+    totals = null;
+    rawWeights = trainingState && pb.getRawWeights() ? new double[0] : null;
+    initTable(pb.getHashBits(), trainingState);
+    for (Perceptron.HashedRow row : pb.getHashedRowList()) {
+      readHashedRow(row);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+import net.kanstren.littlepos.persist.PBStreamReader;
+import net.kanstren.littlepos.persist.PBStreamWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes checkpoints of a training run between iterations, and reads them back to resume the run.
+ * A checkpoint has the full training state: the weights before averaging with their timestamps and totals,
+ * the update count, the word statistics, the sentence order and the shuffling random state for the next iteration.
+ * Resuming from it gives the same model as a run that was never interrupted.
+ *
+ * Checkpoints are written on a background thread from a copy of the model, so training goes on meanwhile.
+ * Only one write is pending at a time: if the previous one is still running at the next checkpoint, training waits for it.
+ * Each checkpoint is written to a temporary file first and then moved over the previous one,
+ * so a crash while writing leaves the previous checkpoint in place.
+ *
+ * The file is a magic number and version as ints, then a length-delimited TrainingState,
+ * followed by the model in the PBStreamWriter format.
+ *
+ * @author Teemu Kanstren.
+ */
+class Checkpointer implements AutoCloseable {
+  private static final Logger log = LogManager.getLogger();
+  /** "LPCP" as in little pos checkpoint. */
+  private static final int MAGIC = 0x4c504350;
+  private static final int VERSION = 1;
+  /** The checkpoint file, replaced with each new checkpoint. */
+  private final Path file;
+  /** Number of iterations between checkpoints. */
+  private final int interval;
+  /** Writes the checkpoints, one at a time. */
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "checkpoint-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  /** The write in progress, null if none. */
+  private Future<?> pending = null;
+
+  /**
+   * @param file The checkpoint file to write.
+   * @param interval Number of iterations between checkpoints.
+   */
+  Checkpointer(Path file, int interval) {
+    this.file = file;
+    this.interval = interval;
+  }
+
+  /**
+   * @param iterationsDone Number of iterations finished.
+   * @param iterations Number of iterations to run in total.
+   * @return True if a checkpoint should be written now. Not after the last iteration, when the model is finished instead.
+   */
+  boolean isDue(int iterationsDone, int iterations) {
+    return iterationsDone < iterations && iterationsDone % interval == 0;
+  }
+
+  /**
+   * Write a checkpoint in the background. The state is taken on the calling thread, so the order and random
+   * can be changed after this returns, but the snapshot must not be.
+   *
+   * @param iterationsDone Number of iterations finished.
+   * @param iterations Number of iterations to run in total.
+   * @param threads Number of threads trained with.
+   * @param order Sentence order for the next iteration.
+   * @param random Random for shuffling the order after the next iteration.
+   * @param snapshot Tagger with a copy of the model in training, not shared with the training.
+   */
+  void write(int iterationsDone, int iterations, int threads, int[] order, ShuffleRandom random, PerceptronTagger snapshot) {
+    Perceptron.TrainingState.Builder state = Perceptron.TrainingState.newBuilder()
+        .setIteration(iterationsDone)
+        .setIterations(iterations)
+        .setThreads(threads)
+        .setSentenceCount(order.length)
+        .setRandomState(random.state())
+        .setCheckpointInterval(interval);
+    for (int sentence : order) {
+      state.addOrder(sentence);
+    }
+    awaitPending();
+    pending = writer.submit(() -> {
+      long start = System.currentTimeMillis();
+      try {
+        write(file, state.build(), snapshot);
+        log.info("Wrote checkpoint after iteration "+iterationsDone+" to "+file+" in "+(System.currentTimeMillis() - start)+"ms.");
+      } catch (IOException e) {
+        //training goes on, the previous checkpoint is still there
+        log.error("Failed to write checkpoint to "+file+".", e);
+      }
+    });
+  }
+
+  private void awaitPending() {
+    if (pending == null) return;
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for checkpoint write.", e);
+    } catch (ExecutionException e) {
+      log.error("Failed to write checkpoint to "+file+".", e.getCause());
+    }
+    pending = null;
+  }
+
+  /**
+   * Wait for the pending write to finish and stop the writer thread.
+   */
+  @Override
+  public void close() {
+    awaitPending();
+    writer.shutdown();
+  }
+
+  /**
+   * Write the checkpoint to a temporary file next to the given one, and then move it over the given one.
+   */
+  private static void write(Path file, Perceptron.TrainingState state, PerceptronTagger snapshot) throws IOException {
+    Path absolute = file.toAbsolutePath();
+    Path temp = absolute.resolveSibling(absolute.getFileName()+".tmp");
+    try (FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      state.writeDelimitedTo(out);
+      new PBStreamWriter(snapshot).writeTo(out);
+      out.flush();
+      //make sure the data is on disk before replacing the previous checkpoint with it
+      fileOut.getFD().sync();
+    }
+    Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read a checkpoint file.
+   *
+   * @param file The checkpoint file to read.
+   * @return The training state and the tagger from the checkpoint.
+   * @throws IOException If the file cannot be read or is not a checkpoint file.
+   */
+  static Checkpoint read(Path file) throws IOException {
+    try (InputStream input = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+      DataInputStream in = new DataInputStream(input);
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a checkpoint file: "+file);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported checkpoint version "+version+", expected "+VERSION+".");
+      }
+      Perceptron.TrainingState state = Perceptron.TrainingState.parseDelimitedFrom(in);
+      if (state == null) {
+        throw new IOException("Checkpoint file has no training state: "+file);
+      }
+      return new Checkpoint(state, PBStreamReader.readFrom(in));
+    }
+  }
+
+  /** A checkpoint read from file. */
+  static class Checkpoint {
+    final Perceptron.TrainingState state;
+    /** Tagger with the statistics and the model in training, not averaged. */
+    final PerceptronTagger tagger;
+
+    private Checkpoint(Perceptron.TrainingState state, PerceptronTagger tagger) {
+      this.state = state;
+      this.tagger = tagger;
+    }
+  }
+}
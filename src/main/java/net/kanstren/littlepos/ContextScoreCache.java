@@ -0,0 +1,127 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.TagScore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the context feature scores for word windows.
+ * Most of the features depend only on the word and the two words before and after it (see Features.extractContext()),
+ * so their summed weights are the same every time the same window of words comes along.
+ * With the context scores cached, tagging a word only needs to look up the weights for the tag history features.
+ * Each thread has its own cache, so there is no locking. The capacity is per thread.
+ * The cached scores are tied to the model they were computed with, so a new cache is needed when the model changes.
+ * Looking up and storing the windows has its own cost, so this only pays off for repetitive input.
+ * It helps most with the mapped model, where each weight lookup is a binary search.
+ *
+ * @author Teemu Kanstren.
+ */
+class ContextScoreCache {
+  /** Max number of word windows cached per thread. */
+  private final int capacity;
+  private final ThreadLocal<Map<Window, Scores>> perThread;
+
+  /**
+   * @param capacity Max number of word windows to cache per thread.
+   */
+  ContextScoreCache(int capacity) {
+    this.capacity = capacity;
+    this.perThread = ThreadLocal.withInitial(this::createMap);
+  }
+
+  private Map<Window, Scores> createMap() {
+    //access order makes the iteration order least recently used first, so the eldest entry is the one to remove
+    return new LinkedHashMap<Window, Scores>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Window, Scores> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Predict the tag for a word, using the cached context scores for its word window if there are any.
+   *
+   * @param model To predict with. Must be the same model for all calls to this cache.
+   * @param features Feature extractor to use.
+   * @param context The sentence words, with START,START prefix and END,END suffix.
+   * @param i Index of the word in the context.
+   * @param prev1 Tag given to previous word.
+   * @param prev2 Tag given to previous word of previous word.
+   * @return Highest scoring tag, same as model.predict() would give for all the features of the word.
+   */
+  TagScore predict(TagPredictor model, Features features, String[] context, int i, String prev1, String prev2) {
+    Map<Window, Scores> cache = perThread.get();
+    Window window = new Window(context, i);
+    Scores cached = cache.get(window);
+    if (cached == null) {
+      features.extractContext(i, context[i], context);
+      double[] scores = new double[model.tagCount()];
+      boolean found = model.addScores(features, 0, Features.CONTEXT_SIZE, scores);
+      cached = new Scores(scores, found);
+      cache.put(window, cached);
+    }
+    //the cached scores are shared, so add the history on a copy
+    double[] scores = cached.scores.clone();
+    features.extractHistory(i, context, prev1, prev2);
+    boolean found = model.addScores(features, Features.CONTEXT_SIZE, features.size(), scores);
+    return model.best(scores, found || cached.found);
+  }
+
+  /**
+   * The words from two before to two after the word being tagged.
+   */
+  private static class Window {
+    private final String prev2;
+    private final String prev1;
+    private final String word;
+    private final String next1;
+    private final String next2;
+    private final int hash;
+
+    private Window(String[] context, int i) {
+      prev2 = context[i - 2];
+      prev1 = context[i - 1];
+      word = context[i];
+      next1 = context[i + 1];
+      next2 = context[i + 2];
+      int h = word.hashCode();
+      h = h * 31 + prev1.hashCode();
+      h = h * 31 + next1.hashCode();
+      h = h * 31 + prev2.hashCode();
+      h = h * 31 + next2.hashCode();
+      hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Window)) return false;
+      Window other = (Window) o;
+      return hash == other.hash && word.equals(other.word) && prev1.equals(other.prev1) && next1.equals(other.next1)
+          && prev2.equals(other.prev2) && next2.equals(other.next2);
+    }
+  }
+
+  /**
+   * Summed weights of the context features for a word window.
+   */
+  private static class Scores {
+    /** Indexed by tag id. Not modified after creation. */
+    private final double[] scores;
+    /** True if any of the context features had a non-zero weight. */
+    private final boolean found;
+
+    private Scores(double[] scores, boolean found) {
+      this.scores = scores;
+      this.found = found;
+    }
+  }
+}
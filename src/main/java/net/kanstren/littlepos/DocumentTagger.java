@@ -0,0 +1,221 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.Lexicon;
+import net.kanstren.littlepos.metrics.TaggerMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Tags text documents as a stream, one sentence at a time, so documents of any size are tagged in constant memory.
+ * The input has one sentence per line, with the words separated by spaces, tabs or carriage returns,
+ * split the same way as the sentences given to tag(), see PerceptronTagger.split().
+ * The output has a "word tag" line for each word and an empty line after each sentence, the same format as the training data.
+ * Words are written as they are in the input, not normalized.
+ *
+ * The text is read into a reusable char buffer and lines are split into words as offsets into the buffer,
+ * without creating strings for the lines or the words. Words are normalized from the buffer,
+ * so only the normalized word is created as a string, since that is what the model and the lexicon look up.
+ * The buffer only grows if a line does not fit in it.
+ * Not thread-safe, get one for each thread from FrozenTagger.documentTagger().
+ *
+ * @author Teemu Kanstren.
+ */
+public class DocumentTagger {
+  private static final Logger log = LogManager.getLogger();
+  /** Initial size of the read buffer in chars. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private final TagPredictor model;
+  private final Lexicon singleTags;
+  private final TaggerMetrics metrics;
+  private final ContextScoreCache contextCache;
+  private final SentenceCache sentenceCache;
+  /**
+   * True if lowercasing each char gives the same result as String.toLowerCase() in the default locale.
+   * Not the case for Turkish, Azeri and Lithuanian, which have special rules for some letters.
+   */
+  private final boolean charLowerCase;
+  /** Text read from the input. Lines are processed from this directly. */
+  private CharBuffer buffer = CharBuffer.allocate(BUFFER_SIZE);
+  /** Start index in the buffer for each word in the current line. */
+  private int[] starts = new int[64];
+  /** End index in the buffer (exclusive) for each word in the current line. */
+  private int[] ends = new int[64];
+  /** For building the lowercase version of a word. */
+  private char[] lower = new char[64];
+  /** Sentences tagged so far. */
+  private long sentenceCount = 0;
+  /** Words tagged so far. */
+  private long wordCount = 0;
+
+  DocumentTagger(TagPredictor model, Lexicon singleTags, TaggerMetrics metrics,
+                 ContextScoreCache contextCache, SentenceCache sentenceCache) {
+    this.model = model;
+    this.singleTags = singleTags;
+    this.metrics = metrics;
+    this.contextCache = contextCache;
+    this.sentenceCache = sentenceCache;
+    String language = Locale.getDefault().getLanguage();
+    this.charLowerCase = !(language.equals("tr") || language.equals("az") || language.equals("lt"));
+  }
+
+  /**
+   * Tag a text file into an output file, both in UTF-8.
+   * The input is decoded from the file channel straight into the read buffer.
+   *
+   * @param inputFile Text to tag, one sentence per line.
+   * @param outputFile Where to write the tagged words.
+   * @return Number of sentences tagged.
+   * @throws IOException If reading or writing fails.
+   */
+  public long tag(Path inputFile, Path outputFile) throws IOException {
+    long startSentences = sentenceCount;
+    long startWords = wordCount;
+    try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ);
+         Reader in = Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1);
+         Writer out = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+      tag(in, out);
+    }
+    long sentences = sentenceCount - startSentences;
+    log.info("Tagged "+inputFile+" to "+outputFile+": "+sentences+" sentences, "+(wordCount - startWords)+" words.");
+    return sentences;
+  }
+
+  /**
+   * Tag all the text from the given reader, writing the tagged words to the given writer as each sentence is done.
+   * The writer is flushed at the end but neither is closed.
+   * Give a buffered writer, as the output is written a few chars at a time.
+   *
+   * @param in Text to tag, one sentence per line.
+   * @param out Where to write the tagged words.
+   * @return Number of sentences tagged.
+   * @throws IOException If reading or writing fails.
+   */
+  public long tag(Reader in, Writer out) throws IOException {
+    long startSentences = sentenceCount;
+    char[] chars = buffer.array();
+    int filled = 0;
+    int lineStart = 0;
+    int scan = 0;
+    while (true) {
+      if (filled == chars.length) {
+        if (lineStart > 0) {
+          //move the unfinished line to the start to make space for more
+          System.arraycopy(chars, lineStart, chars, 0, filled - lineStart);
+          filled -= lineStart;
+          scan -= lineStart;
+          lineStart = 0;
+        } else {
+          //the line does not fit at all, so a bigger buffer is needed
+          buffer = CharBuffer.wrap(Arrays.copyOf(chars, chars.length * 2));
+          chars = buffer.array();
+        }
+      }
+      int read = in.read(chars, filled, chars.length - filled);
+      if (read < 0) break;
+      filled += read;
+      for ( ; scan < filled ; scan++) {
+        if (chars[scan] == '\n') {
+          tagLine(chars, lineStart, scan, out);
+          lineStart = scan + 1;
+        }
+      }
+    }
+    //the last line may not end in a newline
+    tagLine(chars, lineStart, filled, out);
+    out.flush();
+    return sentenceCount - startSentences;
+  }
+
+  /**
+   * Tag the words on one line of the buffer and write them out. Empty lines are skipped.
+   *
+   * @param chars The buffer.
+   * @param start Index of the first char of the line.
+   * @param end Index of the newline, or end of data.
+   * @param out Where to write the tagged words.
+   * @throws IOException If writing fails.
+   */
+  private void tagLine(char[] chars, int start, int end, Writer out) throws IOException {
+    int count = 0;
+    int i = start;
+    while (true) {
+      while (i < end && PerceptronTagger.isSeparator(chars[i])) i++;
+      if (i == end) break;
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      starts[count] = i;
+      while (i < end && !PerceptronTagger.isSeparator(chars[i])) i++;
+      ends[count++] = i;
+    }
+    if (count == 0) return;
+    long startTime = metrics != TaggerMetrics.NONE ? System.nanoTime() : 0;
+    String[] words = new String[count];
+    for (int w = 0 ; w < count ; w++) {
+      words[w] = normalize(chars, starts[w], ends[w]);
+    }
+    SentenceCache.Result result = PerceptronTagger.tag(words, model, singleTags, metrics, contextCache, sentenceCache, startTime);
+    for (int w = 0 ; w < count ; w++) {
+      out.write(chars, starts[w], ends[w] - starts[w]);
+      out.write(' ');
+      out.write(result.tags[w]);
+      out.write('\n');
+    }
+    out.write('\n');
+    sentenceCount++;
+    wordCount += count;
+  }
+
+  /**
+   * Normalize a word in the buffer the same way as PerceptronTagger.normalize().
+   *
+   * @param chars The buffer.
+   * @param start Index of the first char of the word.
+   * @param end Index after the last char of the word.
+   * @return The normalized word.
+   */
+  private String normalize(char[] chars, int start, int end) {
+    String digits = PerceptronTagger.digitToken(buffer, start, end);
+    if (digits != null) return digits;
+    int length = end - start;
+    if (!charLowerCase) return new String(chars, start, length).toLowerCase();
+    if (lower.length < length) lower = new char[Math.max(length, lower.length * 2)];
+    for (int i = 0 ; i < length ; i++) {
+      char c = chars[start + i];
+      //surrogate pairs, capital sigma and capital I with dot have lowercase forms that depend on more than the char itself
+      if (c >= 0x80 && (Character.isSurrogate(c) || c == '\u03a3' || c == '\u0130')) {
+        return new String(chars, start, length).toLowerCase();
+      }
+      lower[i] = Character.toLowerCase(c);
+    }
+    return new String(lower, 0, length);
+  }
+
+  /**
+   * @return Number of sentences tagged with this so far.
+   */
+  public long sentenceCount() {
+    return sentenceCount;
+  }
+
+  /**
+   * @return Number of words tagged with this so far.
+   */
+  public long wordCount() {
+    return wordCount;
+  }
+}
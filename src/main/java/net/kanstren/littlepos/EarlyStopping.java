@@ -0,0 +1,203 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.Lexicon;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.metrics.TaggerMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scores a held-out dev set after each training iteration and tells when the dev accuracy has stopped improving.
+ * Each iteration gives a copy of the model, which is averaged and scored on background threads while training goes on,
+ * so the training thread only pays for the copy. The model of the best scoring iteration is kept, others are dropped
+ * once scored. If scoring falls behind, training waits for it before copying the model again,
+ * so there are never more than MAX_PENDING copies being scored besides the best one.
+ * Since scoring runs behind training, training may run an iteration or two past the point where it could have stopped.
+ *
+ * @author Teemu Kanstren.
+ */
+class EarlyStopping implements AutoCloseable {
+  private static final Logger log = LogManager.getLogger();
+  /** Max number of model copies being scored at a time. */
+  private static final int MAX_PENDING = 2;
+  /** Normalized words of the dev sentences, as given to the tagger. */
+  private final String[][] words;
+  /** Correct tags for the dev sentences. */
+  private final String[][] tags;
+  /** Total number of words in the dev set. */
+  private final long wordCount;
+  /** Words that always get the same tag, without prediction. */
+  private final Lexicon singleTags;
+  /** Number of iterations without improvement before stopping. */
+  private final int patience;
+  /** Number of parts to split the dev set into for scoring in parallel. */
+  private final int parts;
+  /** Runs the averaging and scoring. */
+  private final ExecutorService executor;
+  /** Snapshots and their scores, in iteration order. Snapshots are nulled once scored, unless they are the best. */
+  private final List<Snapshot> snapshots = new ArrayList<>();
+  /** Index of the first snapshot whose score has not been checked yet. */
+  private int checked = 0;
+  /** The best scored snapshot so far, null if none scored yet. */
+  private Snapshot best = null;
+
+  /**
+   * @param dev The held-out sentences to score.
+   * @param singleTags Words that always get the same tag, the same as used in tagging.
+   * @param patience Number of iterations without improvement in dev accuracy before stopping, at least 1.
+   * @param threads Number of threads to score with.
+   */
+  EarlyStopping(List<TagSentence> dev, Lexicon singleTags, int patience, int threads) {
+    if (dev.isEmpty()) {
+      throw new IllegalArgumentException("Dev set is empty.");
+    }
+    if (patience < 1) {
+      throw new IllegalArgumentException("Patience must be at least 1, was "+patience+".");
+    }
+    words = new String[dev.size()][];
+    tags = new String[dev.size()][];
+    long count = 0;
+    for (int i = 0 ; i < words.length ; i++) {
+      TagSentence sentence = dev.get(i);
+      words[i] = PerceptronTagger.normalize(sentence.wordArray());
+      tags[i] = sentence.tagArray();
+      count += words[i].length;
+    }
+    this.wordCount = count;
+    this.singleTags = singleTags;
+    this.patience = patience;
+    this.parts = Math.min(threads, words.length);
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "dev-scorer-"+threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Start scoring the model after an iteration, in the background.
+   * Waits for the oldest scoring to finish first if MAX_PENDING models are already being scored.
+   *
+   * @param iteration The iteration the model is from.
+   * @param model The model after the iteration, not yet averaged. A copy of it is averaged and scored.
+   */
+  void submit(int iteration, AveragedPerceptron model) {
+    while (snapshots.size() - checked >= MAX_PENDING) {
+      check(snapshots.get(checked++));
+    }
+    AveragedPerceptron copy = model.copy();
+    Snapshot snapshot = new Snapshot(iteration, copy);
+    snapshot.accuracy = CompletableFuture.runAsync(copy::averageWeights, executor).thenCompose(done -> score(copy));
+    snapshots.add(snapshot);
+  }
+
+  /**
+   * @param model The averaged model to score.
+   * @return Future for the share of dev words tagged correctly.
+   */
+  private CompletableFuture<Double> score(AveragedPerceptron model) {
+    List<CompletableFuture<Long>> results = new ArrayList<>();
+    for (int part = 0 ; part < parts ; part++) {
+      int from = part * words.length / parts;
+      int to = (part + 1) * words.length / parts;
+      results.add(CompletableFuture.supplyAsync(() -> correct(model, from, to), executor));
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      long correct = 0;
+      for (CompletableFuture<Long> result : results) {
+        correct += result.join();
+      }
+      return correct / (double) wordCount;
+    });
+  }
+
+  /**
+   * @param model The model to tag with.
+   * @param from Index of the first dev sentence to tag.
+   * @param to Index after the last dev sentence to tag.
+   * @return Number of words in the sentences tagged correctly.
+   */
+  private long correct(AveragedPerceptron model, int from, int to) {
+    long correct = 0;
+    for (int i = from ; i < to ; i++) {
+      String[] predicted = PerceptronTagger.tag(words[i], model, singleTags, TaggerMetrics.NONE, null, null, 0).tags;
+      for (int w = 0 ; w < predicted.length ; w++) {
+        if (predicted[w].equals(tags[i][w])) correct++;
+      }
+    }
+    return correct;
+  }
+
+  /**
+   * Check the scores finished so far, without waiting for the ones still running.
+   *
+   * @return True if the dev accuracy has not improved for the patience number of iterations.
+   */
+  boolean shouldStop() {
+    while (checked < snapshots.size() && snapshots.get(checked).accuracy.isDone()) {
+      check(snapshots.get(checked++));
+    }
+    if (best == null || checked == 0) return false;
+    return snapshots.get(checked - 1).iteration - best.iteration >= patience;
+  }
+
+  /**
+   * Wait for all the scoring to finish.
+   *
+   * @return The best scoring model, averaged.
+   */
+  AveragedPerceptron best() {
+    while (checked < snapshots.size()) {
+      check(snapshots.get(checked++));
+    }
+    log.info("Best dev accuracy "+String.format("%.4f", best.score)+" after iteration "+best.iteration+".");
+    return best.model;
+  }
+
+  /**
+   * @return The iteration the best model is from, -1 if nothing scored yet.
+   */
+  int bestIteration() {
+    return best == null ? -1 : best.iteration;
+  }
+
+  /**
+   * Take the score of a finished snapshot, and keep its model if it is the best so far.
+   */
+  private void check(Snapshot snapshot) {
+    snapshot.score = snapshot.accuracy.join();
+    log.info("Dev accuracy after iteration "+snapshot.iteration+": "+String.format("%.4f", snapshot.score));
+    if (best == null || snapshot.score > best.score) {
+      if (best != null) best.model = null;
+      best = snapshot;
+    } else {
+      snapshot.model = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** Model copy from an iteration, and its dev score. */
+  private static class Snapshot {
+    private final int iteration;
+    private AveragedPerceptron model;
+    private CompletableFuture<Double> accuracy;
+    private double score;
+
+    private Snapshot(int iteration, AveragedPerceptron model) {
+      this.iteration = iteration;
+      this.model = model;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.Lexicon;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.metrics.TaggerMetrics;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Read-only view of a trained or loaded PerceptronTagger.
+ * It cannot be trained, so one instance can be shared across any number of tagging threads.
+ * Get one from PerceptronTagger.freeze().
+ *
+ * @author Teemu Kanstren.
+ */
+public class FrozenTagger {
+  /** The model to predict with. Only read after this is created. */
+  private final TagPredictor model;
+  /** Maps words to tags when a word clearly has a specific tag. */
+  private final Lexicon singleTags;
+  /** Where to report tagged sentences. */
+  private final TaggerMetrics metrics;
+  /** Cached context scores for the model, null for no caching. */
+  private final ContextScoreCache contextCache;
+  /** Cached results for whole sentences with the model, null for no caching. */
+  private final SentenceCache sentenceCache;
+
+  /**
+   * Create a tagger over a read-only model, such as a MappedModel.
+   *
+   * @param model The model to predict with. Must not change after this.
+   * @param singleTags Words that always get the same tag. Must not change after this.
+   */
+  public FrozenTagger(TagPredictor model, Lexicon singleTags) {
+    this(model, singleTags, TaggerMetrics.NONE);
+  }
+
+  /**
+   * Create a tagger over a read-only model, reporting tagged sentences to the given metrics.
+   *
+   * @param model The model to predict with. Must not change after this.
+   * @param singleTags Words that always get the same tag. Must not change after this.
+   * @param metrics Where to report tagged sentences.
+   */
+  public FrozenTagger(TagPredictor model, Lexicon singleTags, TaggerMetrics metrics) {
+    this(model, singleTags, metrics, null, null);
+  }
+
+  /**
+   * @param model The model to predict with. Must not change after this.
+   * @param singleTags Words that always get the same tag. Must not change after this.
+   * @param metrics Where to report tagged sentences.
+   * @param contextCache Cache for context scores of the model, null for no caching.
+   * @param sentenceCache Cache for sentences tagged with the model, null for no caching.
+   */
+  FrozenTagger(TagPredictor model, Lexicon singleTags, TaggerMetrics metrics,
+               ContextScoreCache contextCache, SentenceCache sentenceCache) {
+    this.model = model;
+    this.singleTags = singleTags;
+    this.metrics = metrics;
+    this.contextCache = contextCache;
+    this.sentenceCache = sentenceCache;
+  }
+
+  /**
+   * @param metrics Where to report tagged sentences.
+   * @return A tagger with the same model and lexicon as this one, reporting to the given metrics.
+   */
+  public FrozenTagger withMetrics(TaggerMetrics metrics) {
+    return new FrozenTagger(model, singleTags, metrics, contextCache, sentenceCache);
+  }
+
+  /**
+   * Use a cache for the scores of the word context features, which speeds up tagging of repetitive input.
+   * See ContextScoreCache.
+   *
+   * @param size Max number of word windows to cache context scores for, per thread. 0 to disable the cache.
+   * @return A tagger with the same model and lexicon as this one, with a new context score cache of the given size.
+   */
+  public FrozenTagger withContextCache(int size) {
+    return new FrozenTagger(model, singleTags, metrics, PerceptronTagger.createContextCache(size), sentenceCache);
+  }
+
+  /**
+   * Cache the tags for whole sentences, so repeated sentences are tagged without scoring.
+   * The cache can be shared with other taggers, the results are kept separate for each model.
+   *
+   * @param sentenceCache The cache to use, null to not cache sentences.
+   * @return A tagger with the same model and lexicon as this one, using the given sentence cache.
+   */
+  public FrozenTagger withSentenceCache(SentenceCache sentenceCache) {
+    return new FrozenTagger(model, singleTags, metrics, contextCache, sentenceCache);
+  }
+
+  /**
+   * Make a prediction for each word in the sentence and given them POS tags/labels.
+   * Safe to call from several threads at once.
+   *
+   * @param sentence To tag.
+   * @return Tagged sentence.
+   */
+  public TagSentence tag(String sentence) {
+    return PerceptronTagger.tag(sentence, model, singleTags, metrics, contextCache, sentenceCache);
+  }
+
+  /**
+   * @return Lookup for the words that always get the same tag without prediction, such as to tell them apart in evaluation.
+   */
+  public Lexicon singleTags() {
+    return singleTags;
+  }
+
+  /**
+   * Get a tagger for streaming whole documents through this tagger, see DocumentTagger.
+   * The document tagger is not thread-safe, so get one for each thread.
+   *
+   * @return A new document tagger with the model, lexicon, metrics and caches of this tagger.
+   */
+  public DocumentTagger documentTagger() {
+    return new DocumentTagger(model, singleTags, metrics, contextCache, sentenceCache);
+  }
+
+  /**
+   * Tag all the given sentences in parallel, using the common fork-join pool.
+   *
+   * @param sentences To tag.
+   * @return Tagged sentences, in the same order as given.
+   */
+  public List<TagSentence> tagAll(List<String> sentences) {
+    return tagAll(sentences.stream());
+  }
+
+  /**
+   * Tag all the given sentences in parallel, using the common fork-join pool.
+   *
+   * @param sentences To tag.
+   * @return Tagged sentences, in the same order as given.
+   */
+  public List<TagSentence> tagAll(Stream<String> sentences) {
+    //a parallel stream keeps the encounter order when collecting to a list
+    return sentences.parallel().map(this::tag).collect(Collectors.toList());
+  }
+
+  /**
+   * Tag all the given sentences in parallel, using the given fork-join pool.
+   * Useful to keep batch tagging from competing with other users of the common pool.
+   *
+   * @param sentences To tag.
+   * @param pool To run the tagging in.
+   * @return Tagged sentences, in the same order as given.
+   * @throws InterruptedException If interrupted while waiting for the tagging to finish.
+   */
+  public List<TagSentence> tagAll(List<String> sentences, ForkJoinPool pool) throws InterruptedException {
+    try {
+      //a parallel stream started from a task in a pool runs in that pool
+      return pool.submit(() -> tagAll(sentences.stream())).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException("Failed to tag sentences.", cause);
+    }
+  }
+}
@@ -1,18 +1,30 @@
 package net.kanstren.littlepos;
 
+import net.kanstren.littlepos.corpus.BinaryCorpus;
+import net.kanstren.littlepos.datamodel.CompactLexicon;
 import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.Lexicon;
 import net.kanstren.littlepos.datamodel.Statistics;
 import net.kanstren.littlepos.datamodel.TagScore;
 import net.kanstren.littlepos.datamodel.TagSentence;
 import net.kanstren.littlepos.datamodel.WordTag;
 import net.kanstren.littlepos.generated.protobuf.Perceptron;
+import net.kanstren.littlepos.metrics.TaggerMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Part of sentence tagger, based on
@@ -23,15 +35,136 @@ import java.util.Map;
 public class PerceptronTagger {
   private static final Logger log = LogManager.getLogger();
   /** Synthetic start for sentence to allow algorithm to always look at all features even at start of sentence (previous words). */
-  private final String[] START = new String[] {"-START1-", "-START2-"};
+  private static final String[] START = new String[] {"-START1-", "-START2-"};
+  /** Number of passes over the training data, unless given otherwise. */
+  public static final int DEFAULT_ITERATIONS = 10;
+  /** Max number of passes over the training data when stopping early on a dev set, unless given otherwise. */
+  public static final int MAX_ITERATIONS = 100;
+  /** Number of passes without improvement in dev accuracy before stopping early, unless given otherwise. */
+  public static final int DEFAULT_PATIENCE = 3;
   /** Synthetic end for sentence to allow algorithm to always look at all features even at end of sentence (next words). */
-  private final String[] END = new String[] {"-END1-", "-END2-"};
+  private static final String[] END = new String[] {"-END1-", "-END2-"};
   /** Keeping statistics on how often words/tags appear in training set. */
-  private final Statistics statistics = new Statistics();
+  private final Statistics statistics;
   /** Maps words to tags when a word clearly has a specific tag. */
-  private final Map<String, String> singleTags = new HashMap<>();
+  private CompactLexicon singleTags = CompactLexicon.EMPTY;
   /** The other part of this tagger.. ? :) */
   private AveragedPerceptron model;
+  /** Bits for the hashed feature table when training, 0 for storing features by name. See AveragedPerceptron. */
+  private final int hashBits;
+  /** Where to report tagging and training events. */
+  private TaggerMetrics metrics = TaggerMetrics.NONE;
+  /** Max number of word windows to cache context scores for, per thread. 0 for no caching. */
+  private int contextCacheSize = 0;
+  /** Cached context scores for the current model, null if caching is disabled. Replaced whenever the model changes. */
+  private ContextScoreCache contextCache = null;
+  /** Cached results for whole sentences, null if not used. Cleared whenever the model changes, to make room for the new one. */
+  private SentenceCache sentenceCache = null;
+  /** Seed for shuffling the sentences between training iterations, null for a different order on each run. */
+  private Long shuffleSeed = null;
+  /** File to write training checkpoints to, null to not write checkpoints. */
+  private Path checkpointFile = null;
+  /** Number of training iterations between checkpoints. */
+  private int checkpointInterval = 1;
+
+  /**
+   * Create a tagger that stores features by name when trained.
+   */
+  public PerceptronTagger() {
+    this(0);
+  }
+
+  /**
+   * Create a tagger that hashes features into a fixed size table of 2^hashBits rows when trained.
+   * This gives a fixed model size, see AveragedPerceptron for details.
+   *
+   * @param hashBits Number of bits for the feature hash table rows, 0 to store features by name instead.
+   */
+  public PerceptronTagger(int hashBits) {
+    this(hashBits, new Statistics());
+  }
+
+  private PerceptronTagger(int hashBits, Statistics statistics) {
+    this.hashBits = hashBits;
+    this.statistics = statistics;
+  }
+
+  /**
+   * Set where to report tagging and training events. Taggers from freeze() after this report to the same metrics.
+   *
+   * @param metrics The metrics to report to, TaggerMetrics.NONE to disable.
+   */
+  public void setMetrics(TaggerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Set how many word windows to cache the context feature scores for, per tagging thread.
+   * Repeated words and phrases then only need the tag history features scored. See ContextScoreCache.
+   * Disabled by default, as it only pays off when the same word windows come up often.
+   * Taggers from freeze() after this use the same size.
+   *
+   * @param size Max number of word windows to cache per thread, 0 to disable the cache.
+   */
+  public void setContextCacheSize(int size) {
+    contextCacheSize = size;
+    resetContextCache();
+  }
+
+  /**
+   * Cache the tags for whole sentences, so repeated sentences are tagged without scoring.
+   * The same cache is used by taggers from freeze() after this. The results are kept separate for each model,
+   * and the cache is cleared when the model of this tagger changes.
+   *
+   * @param sentenceCache The cache to use, null to not cache sentences.
+   */
+  public void setSentenceCache(SentenceCache sentenceCache) {
+    this.sentenceCache = sentenceCache;
+  }
+
+  /**
+   * Shuffle the training sentences between iterations with a fixed seed, so training on the same sentences
+   * gives the same model every time. By default the order is different on each run.
+   *
+   * @param seed The seed for shuffling.
+   */
+  public void setShuffleSeed(long seed) {
+    this.shuffleSeed = seed;
+  }
+
+  /**
+   * Write a checkpoint of the training state to the given file every given number of iterations,
+   * to resume training from with resumeFromCheckpoint() if it gets interrupted.
+   * The checkpoint is written in the background from a copy of the model, replacing the previous one.
+   * Training with early stopping on a dev set does not write checkpoints.
+   *
+   * @param file The checkpoint file, null to not write checkpoints.
+   * @param interval Number of iterations between checkpoints.
+   */
+  public void setCheckpoints(Path file, int interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive, was "+interval+".");
+    }
+    this.checkpointFile = file;
+    this.checkpointInterval = interval;
+  }
+
+  /**
+   * Drop any cached scores and sentences, needed whenever the model changes.
+   * The context scores are only valid for one model, and the sentences of the old model would only take space.
+   */
+  private void resetContextCache() {
+    contextCache = createContextCache(contextCacheSize);
+    if (sentenceCache != null) sentenceCache.clear();
+  }
+
+  /**
+   * @param size Max number of word windows to cache per thread.
+   * @return A new cache, or null if size is 0 or less.
+   */
+  static ContextScoreCache createContextCache(int size) {
+    return size > 0 ? new ContextScoreCache(size) : null;
+  }
 
   /**
    * Train the tagger based on the given sentences.
@@ -42,65 +175,551 @@ public class PerceptronTagger {
    * @param sentences to train on.
    */
   public void train(List<TagSentence> sentences) {
+    train(sentences, 1);
+  }
+
+  /**
+   * Train the tagger based on the given sentences, using the given number of threads.
+   * With more than one thread, this uses iterative parameter mixing: each iteration splits the sentences into
+   * one shard per thread, trains a copy of the model on each shard in parallel,
+   * and then mixes the shard models back into one by averaging their weights.
+   * The result is usually close to, but not the same as, training on a single thread.
+   * Each thread keeps its own copy of the model during an iteration, so memory use grows with the threads.
+   *
+   * @param sentences to train on.
+   * @param threads Number of threads to train with. 1 means training on the calling thread as a single model.
+   */
+  public void train(List<TagSentence> sentences, int threads) {
+    train(sentences, threads, DEFAULT_ITERATIONS);
+  }
+
+  /**
+   * Train the tagger based on the given sentences, using the given number of threads and passes over the sentences.
+   *
+   * @param sentences to train on.
+   * @param threads Number of threads to train with. 1 means training on the calling thread as a single model.
+   * @param iterations Number of passes over the sentences.
+   */
+  public void train(List<TagSentence> sentences, int threads, int iterations) {
+    long start = System.currentTimeMillis();
     log.info("Updating stats for word frequencies.");
-    statistics.updateWith(sentences);
+    statistics.updateWith(sentences, threads);
     updateSingleMap();
     log.info("Finished stats update. Starting to train predictor model.");
-    model = new AveragedPerceptron();
-    //TODO: try with 100
-    int ITERATIONS = 10;
+    model = new AveragedPerceptron(statistics.tags(), hashBits);
+    resetContextCache();
+    trainIterations(sentences, threads, iterations, null);
+    log.info("Training with "+threads+" threads took "+(System.currentTimeMillis() - start)+"ms.");
+  }
+
+  /**
+   * Train until the accuracy on the given dev set stops improving, up to MAX_ITERATIONS passes on the calling thread.
+   * See train(sentences, dev, threads, maxIterations, patience).
+   *
+   * @param sentences to train on.
+   * @param dev Held-out sentences to measure the accuracy on, not trained on.
+   * @return The iteration the final model is from, counting from 0.
+   */
+  public int train(List<TagSentence> sentences, List<TagSentence> dev) {
+    return train(sentences, dev, 1, MAX_ITERATIONS, DEFAULT_PATIENCE);
+  }
+
+  /**
+   * Train until the accuracy on the given dev set stops improving, instead of a fixed number of passes.
+   * After each pass, a copy of the model is averaged and scored on the dev set on background threads,
+   * while training continues with the next pass. Training stops when the best dev accuracy is patience passes old,
+   * and the model from the pass with the best dev accuracy is kept.
+   * Since the scoring runs behind the training, a pass or two more than needed may be trained before stopping.
+   * Each scored pass holds a copy of the model until its score is in, and training waits if more than two are
+   * being scored, so memory use is at most three models (two being scored and the best one) bigger than usual.
+   *
+   * @param sentences to train on.
+   * @param dev Held-out sentences to measure the accuracy on, not trained on.
+   * @param threads Number of threads to train with. The dev set is scored on as many of the remaining cores, at least one.
+   * @param maxIterations Max number of passes over the sentences, at least 1.
+   * @param patience Number of passes without improvement in dev accuracy before stopping, at least 1.
+   * @return The iteration the final model is from, counting from 0.
+   */
+  public int train(List<TagSentence> sentences, List<TagSentence> dev, int threads, int maxIterations, int patience) {
+    //checked before the statistics and model are reset, so a bad call does not lose the current model
+    if (dev.isEmpty()) {
+      throw new IllegalArgumentException("Dev set is empty.");
+    }
+    if (maxIterations < 1 || patience < 1) {
+      throw new IllegalArgumentException("Max iterations and patience must be at least 1, were "+maxIterations+" and "+patience+".");
+    }
+    long start = System.currentTimeMillis();
+    log.info("Updating stats for word frequencies.");
+    statistics.updateWith(sentences, threads);
+    updateSingleMap();
+    log.info("Finished stats update. Starting to train predictor model.");
+    model = new AveragedPerceptron(statistics.tags(), hashBits);
+    resetContextCache();
+    int scoringThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - threads);
+    int bestIteration;
+    try (EarlyStopping stopping = new EarlyStopping(dev, singleTags, patience, scoringThreads)) {
+      trainIterations(sentences, threads, maxIterations, stopping);
+      bestIteration = stopping.bestIteration();
+    }
+    log.info("Training with "+threads+" threads took "+(System.currentTimeMillis() - start)+"ms, keeping iteration "+bestIteration+".");
+    return bestIteration;
+  }
+
+  /**
+   * Continue training the current model with more sentences, on the calling thread with the default number of iterations.
+   * See continueTraining(sentences, threads, iterations).
+   *
+   * @param sentences The new sentences to train on.
+   */
+  public void continueTraining(List<TagSentence> sentences) {
+    continueTraining(sentences, 1, DEFAULT_ITERATIONS);
+  }
+
+  /**
+   * Continue training the current model with more sentences, instead of training again from scratch on all of them.
+   * Only the given sentences are trained on, on top of the existing weights, and the weights are then averaged again
+   * over all the training so far. The word statistics and single tag words are updated to include the new sentences.
+   * This needs a model that was trained here, or loaded from a model stored with its training state.
+   * Taggers from an earlier freeze() keep the model from before this.
+   *
+   * @param sentences The new sentences to train on.
+   * @param threads Number of threads to train with. 1 means training on the calling thread as a single model.
+   * @param iterations Number of passes over the new sentences.
+   */
+  public void continueTraining(List<TagSentence> sentences, int threads, int iterations) {
+    if (model == null) {
+      throw new IllegalStateException("Nothing to continue from, train or load the model first.");
+    }
+    if (!model.hasTrainingState()) {
+      throw new IllegalStateException("Model has no training state (inference only, pruned or quantized), it cannot be trained further.");
+    }
+    long start = System.currentTimeMillis();
+    if (!model.hasRawWeights()) {
+      log.warn("Model was stored without raw weights, continuing training from the averaged weights.");
+    }
+    log.info("Updating stats for word frequencies.");
+    statistics.updateWith(sentences, threads);
+    updateSingleMap();
+    //a copy so that taggers frozen from the current model do not see the changes
+    AveragedPerceptron resumed = model.copy();
+    resumed.resumeTraining();
+    resumed.addTags(statistics.tags());
+    model = resumed;
+    resetContextCache();
+    trainIterations(sentences, threads, iterations, null);
+    log.info("Continued training with "+threads+" threads took "+(System.currentTimeMillis() - start)+"ms.");
+  }
+
+  /**
+   * Run the training iterations over the given sentences for the current model, and average the weights at the end.
+   * With early stopping, the iterations stop once the dev accuracy stops improving, and the best scored model is kept.
+   *
+   * @param sentences To train on.
+   * @param threads Number of threads to train with.
+   * @param iterations Max number of passes over the sentences.
+   * @param stopping To score each iteration on a dev set with, null to run all the iterations.
+   */
+  private void trainIterations(List<TagSentence> sentences, int threads, int iterations, EarlyStopping stopping) {
+    trainIterations(sentences, threads, 0, iterations, initialOrder(sentences.size()), createRandom(), stopping);
+  }
+
+  /**
+   * Run the training iterations from the given one on, see trainIterations(sentences, threads, iterations, stopping).
+   *
+   * @param sentences To train on.
+   * @param threads Number of threads to train with.
+   * @param firstIteration The iteration to start from, more than 0 when resuming from a checkpoint.
+   * @param iterations Max number of passes over the sentences, including the ones before firstIteration.
+   * @param order Order to train on the sentences in the first iteration, as indices into the sentences.
+   * @param random For shuffling the order after each iteration.
+   * @param stopping To score each iteration on a dev set with, null to run all the iterations.
+   */
+  private void trainIterations(List<TagSentence> sentences, int threads, int firstIteration, int iterations,
+                               int[] order, ShuffleRandom random, EarlyStopping stopping) {
+    int guesses = 0; //or predictions..
+    for (TagSentence sentence : sentences) {
+      guesses += sentence.getWordTags().size();
+    }
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    //no checkpoints with early stopping, as they would not have the dev scores to resume with
+    Checkpointer checkpointer = stopping == null ? createCheckpointer() : null;
+    try {
+      for (int iteration = firstIteration ; iteration < iterations ; iteration++) {
+        log.info("training iteration "+iteration+"/"+iterations);
+        long iterationStart = System.nanoTime();
+        List<TagSentence> ordered = new ArrayList<>(order.length);
+        for (int sentence : order) {
+          ordered.add(sentences.get(sentence));
+        }
+        int correct;
+        if (executor == null) {
+          correct = trainIteration(model, ordered);
+        } else {
+          correct = trainParallelIteration(ordered, threads, executor);
+        }
+        //this is the part where the sentences are shuffled to avoid the ordering favouring specific faetures too much
+        //->because the averaging counts total for the weights over time so early vs late appearing features get different weight
+        shuffle(order, random);
+        long nanos = System.nanoTime() - iterationStart;
+        metrics.iterationFinished(iteration, guesses, correct, nanos);
+        log.info("Iteration "+iteration+". results: correct="+correct+" guesses="+guesses+" time="+nanos / 1_000_000+"ms");
+        checkpoint(checkpointer, iteration + 1, iterations, threads, order, random);
+        if (stopping != null) {
+          //scored in the background on a copy, training goes on with the next iteration meanwhile
+          stopping.submit(iteration, model);
+          if (stopping.shouldStop()) {
+            log.info("Dev accuracy has not improved since iteration "+stopping.bestIteration()+", stopping.");
+            break;
+          }
+        }
+      }
+    } finally {
+      if (executor != null) executor.shutdown();
+      if (checkpointer != null) checkpointer.close();
+    }
+    if (stopping != null) {
+      log.info("Finished iterations. Waiting for dev scores.");
+      model = stopping.best();
+      resetContextCache();
+      return;
+    }
+    log.info("Finished all iterations. Averaging models.");
+    model.averageWeights();
+  }
+
+  /**
+   * Train the given model for one iteration over the given sentences.
+   *
+   * @param model To train.
+   * @param sentences To train on.
+   * @return Number of correct predictions during the iteration.
+   */
+  private static int trainIteration(AveragedPerceptron model, List<TagSentence> sentences) {
+    Features features = Features.forThread();
+    int correct = 0;
+    for (TagSentence sentence : sentences) {
+      //this is the sentence we are training on but with the words only (and start+end adds)
+      String[] context = createContext(sentence.wordArray());
+      correct += trainSentence(model, features, context, sentence.tagArray(), sentence.getWordTags().size());
+    }
+    return correct;
+  }
+
+  /**
+   * Train the given model on one sentence.
+   *
+   * @param model To train.
+   * @param features Feature extractor to use.
+   * @param context Words of the sentence, with START+START before and END+END after them.
+   * @param tags Correct tags for the words of the sentence.
+   * @param length Number of words in the sentence.
+   * @return Number of correct predictions in the sentence.
+   */
+  private static int trainSentence(AveragedPerceptron model, Features features, String[] context, String[] tags, int length) {
     String prev1 = START[0];
     String prev2 = START[1];
-    for (int iteration = 0 ; iteration < ITERATIONS ; iteration++) {
-      log.info("training iteration "+iteration+"/"+ITERATIONS);
-      int correct = 0;
-      int guesses = 0; //or predictions..
-      for (TagSentence sentence : sentences) {
-        //this is the sentence we are training on but with the words only (and start+end adds)
-        String[] context = createContext(sentence.wordArray());
-        //start guessing at index 2 to skip the START START synthetic prefix
-        int guessIndex = 2;
-        for (WordTag wordTag : sentence.getWordTags()) {
-          Features features = new Features(guessIndex, wordTag.word, context, prev1, prev2);
-          TagScore guess = model.predict(features);
-          guesses++;
-          guessIndex++;
-          if (guess.tag.equals(wordTag.tag)) {
-            correct++;
-            //we could also insert "continue" here as correct guesses do not update feature weights
+    int correct = 0;
+    for (int i = 0 ; i < length ; i++) {
+      //start guessing at index 2 to skip the START START synthetic prefix
+      int guessIndex = i + 2;
+      features.extract(guessIndex, context[guessIndex], context, prev1, prev2);
+      TagScore guess = model.predict(features);
+      if (guess.tag.equals(tags[i])) {
+        correct++;
+        //we could also insert "continue" here as correct guesses do not update feature weights
+      }
+      model.update(tags[i], guess.tag, features);
+    }
+    return correct;
+  }
+
+  /**
+   * Train the tagger from a binary corpus, without loading the sentences into memory.
+   * The sentences are read from the memory mapped corpus file on each iteration,
+   * and shuffled through an array of sentence indices instead of the sentences themselves.
+   *
+   * @param corpus to train on.
+   */
+  public void train(BinaryCorpus corpus) {
+    long start = System.currentTimeMillis();
+    log.info("Updating stats for word frequencies.");
+    int sentenceCount = corpus.sentenceCount();
+    //count shards of the corpus in parallel and merge them in order, the corpus is only read so sharing it is fine
+    int shards = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, sentenceCount));
+    List<Statistics> parts = IntStream.range(0, shards).parallel()
+        .mapToObj(shard -> corpusStatistics(corpus, (int) ((long) shard * sentenceCount / shards), (int) ((long) (shard + 1) * sentenceCount / shards)))
+        .collect(Collectors.toList());
+    for (Statistics part : parts) {
+      statistics.merge(part);
+    }
+    updateSingleMap();
+    log.info("Finished stats update. Starting to train predictor model.");
+    model = new AveragedPerceptron(statistics.tags(), hashBits);
+    resetContextCache();
+    trainIterations(corpus, 0, DEFAULT_ITERATIONS, initialOrder(sentenceCount), createRandom());
+    log.info("Training from binary corpus took "+(System.currentTimeMillis() - start)+"ms.");
+  }
+
+  /**
+   * Run the training iterations over a binary corpus from the given one on, and average the weights at the end.
+   *
+   * @param corpus To train on.
+   * @param firstIteration The iteration to start from, more than 0 when resuming from a checkpoint.
+   * @param iterations Number of passes over the corpus, including the ones before firstIteration.
+   * @param order Order to train on the sentences in the first iteration, as sentence indices in the corpus.
+   * @param random For shuffling the order after each iteration.
+   */
+  private void trainIterations(BinaryCorpus corpus, int firstIteration, int iterations, int[] order, ShuffleRandom random) {
+    Features features = Features.forThread();
+    //reused for all sentences, grown when a longer sentence comes along
+    String[] context = new String[0];
+    String[] tags = new String[0];
+    Checkpointer checkpointer = createCheckpointer();
+    try {
+      for (int iteration = firstIteration ; iteration < iterations ; iteration++) {
+        log.info("training iteration "+iteration+"/"+iterations);
+        long iterationStart = System.nanoTime();
+        int correct = 0;
+        for (int sentence : order) {
+          int length = corpus.sentenceLength(sentence);
+          if (tags.length < length) {
+            tags = new String[length * 2];
+            context = new String[length * 2 + 4];
           }
-          model.update(wordTag.tag, guess.tag, features);
+          long first = corpus.sentenceStart(sentence);
+          System.arraycopy(START, 0, context, 0, 2);
+          for (int i = 0 ; i < length ; i++) {
+            context[i + 2] = corpus.wordAt(first + i);
+            tags[i] = corpus.tagAt(first + i);
+          }
+          System.arraycopy(END, 0, context, length + 2, 2);
+          correct += trainSentence(model, features, context, tags, length);
         }
-        //shuffle the order to get another iteration..
+        //shuffle the sentence order for the next iteration, same as the sentence list when training in memory
+        shuffle(order, random);
+        long nanos = System.nanoTime() - iterationStart;
+        metrics.iterationFinished(iteration, corpus.tokenCount(), correct, nanos);
+        log.info("Iteration "+iteration+". results: correct="+correct+" guesses="+corpus.tokenCount()+" time="+nanos / 1_000_000+"ms");
+        checkpoint(checkpointer, iteration + 1, iterations, 1, order, random);
       }
-      //this is the part where the sentences are shuffled to avoid the ordering favouring specific faetures too much
-      //->because the averaging counts total for the weights over time so early vs late appearing features get different weight
-      Collections.shuffle(sentences);
-      log.info("Iteration "+iteration+". results: correct="+correct+" guesses="+guesses);
+    } finally {
+      if (checkpointer != null) checkpointer.close();
     }
     log.info("Finished all iterations. Averaging models.");
     model.averageWeights();
   }
 
+  /**
+   * @param count Number of sentences.
+   * @return Sentence indices in their original order.
+   */
+  private static int[] initialOrder(int count) {
+    int[] order = new int[count];
+    for (int i = 0 ; i < count ; i++) {
+      order[i] = i;
+    }
+    return order;
+  }
+
+  /**
+   * Shuffle the sentence order in place (Fisher-Yates).
+   */
+  private static void shuffle(int[] order, ShuffleRandom random) {
+    for (int i = order.length - 1 ; i > 0 ; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+  /**
+   * @return Random for shuffling the training sentences, seeded if a seed is set.
+   */
+  private ShuffleRandom createRandom() {
+    return shuffleSeed == null ? ShuffleRandom.unseeded() : ShuffleRandom.seeded(shuffleSeed);
+  }
+
+  /**
+   * @return Writer for the checkpoints, null if checkpoints are not set.
+   */
+  private Checkpointer createCheckpointer() {
+    return checkpointFile == null ? null : new Checkpointer(checkpointFile, checkpointInterval);
+  }
+
+  /**
+   * Write a checkpoint if one is due after the given iteration.
+   *
+   * @param checkpointer To write with, null if checkpoints are not set.
+   * @param iterationsDone Number of iterations finished.
+   * @param iterations Number of iterations to run in total.
+   * @param threads Number of threads trained with.
+   * @param order Sentence order for the next iteration.
+   * @param random For shuffling the order after the next iteration.
+   */
+  private void checkpoint(Checkpointer checkpointer, int iterationsDone, int iterations, int threads, int[] order, ShuffleRandom random) {
+    if (checkpointer == null || !checkpointer.isDue(iterationsDone, iterations)) return;
+    //the statistics and single tags do not change during the iterations, so only the model needs a copy
+    PerceptronTagger snapshot = new PerceptronTagger(hashBits, statistics);
+    snapshot.singleTags = singleTags;
+    snapshot.model = model.copy();
+    checkpointer.write(iterationsDone, iterations, threads, order, random, snapshot);
+  }
+
+  /**
+   * Resume an interrupted training run from a checkpoint written during train(sentences, threads, iterations).
+   * The sentences must be the same ones, in the same order, as given to the interrupted run.
+   * The result is the same as from a run that was never interrupted, as long as the run was started with a shuffle seed
+   * or the checkpoint was written after the first iteration, since the shuffling random is in the checkpoint.
+   * Checkpoints keep being written to the same file as before.
+   *
+   * @param checkpoint The checkpoint file.
+   * @param sentences The training sentences of the interrupted run.
+   * @return The trained tagger.
+   * @throws IOException If the checkpoint cannot be read.
+   */
+  public static PerceptronTagger resumeFromCheckpoint(Path checkpoint, List<TagSentence> sentences) throws IOException {
+    Checkpointer.Checkpoint loaded = loadCheckpoint(checkpoint, sentences.size());
+    Perceptron.TrainingState state = loaded.state;
+    PerceptronTagger tagger = loaded.tagger;
+    long start = System.currentTimeMillis();
+    tagger.trainIterations(sentences, state.getThreads(), state.getIteration(), state.getIterations(),
+        order(state), ShuffleRandom.fromState(state.getRandomState()), null);
+    log.info("Resumed training took "+(System.currentTimeMillis() - start)+"ms.");
+    return tagger;
+  }
+
+  /**
+   * Resume an interrupted training run from a checkpoint written during train(corpus).
+   * See resumeFromCheckpoint(checkpoint, sentences).
+   *
+   * @param checkpoint The checkpoint file.
+   * @param corpus The training corpus of the interrupted run.
+   * @return The trained tagger.
+   * @throws IOException If the checkpoint cannot be read.
+   */
+  public static PerceptronTagger resumeFromCheckpoint(Path checkpoint, BinaryCorpus corpus) throws IOException {
+    Checkpointer.Checkpoint loaded = loadCheckpoint(checkpoint, corpus.sentenceCount());
+    Perceptron.TrainingState state = loaded.state;
+    PerceptronTagger tagger = loaded.tagger;
+    long start = System.currentTimeMillis();
+    tagger.trainIterations(corpus, state.getIteration(), state.getIterations(), order(state), ShuffleRandom.fromState(state.getRandomState()));
+    log.info("Resumed training from binary corpus took "+(System.currentTimeMillis() - start)+"ms.");
+    return tagger;
+  }
+
+  /**
+   * Read a checkpoint and set up its tagger to keep writing checkpoints to the same file.
+   *
+   * @param checkpoint The checkpoint file.
+   * @param sentenceCount Number of training sentences given for resuming.
+   * @return The loaded checkpoint.
+   * @throws IOException If the checkpoint cannot be read.
+   */
+  private static Checkpointer.Checkpoint loadCheckpoint(Path checkpoint, int sentenceCount) throws IOException {
+    Checkpointer.Checkpoint loaded = Checkpointer.read(checkpoint);
+    Perceptron.TrainingState state = loaded.state;
+    if (state.getSentenceCount() != sentenceCount) {
+      throw new IllegalArgumentException("Checkpoint is for "+state.getSentenceCount()+" sentences, got "+sentenceCount+".");
+    }
+    log.info("Resuming training from "+checkpoint+" after iteration "+state.getIteration()+"/"+state.getIterations()+".");
+    loaded.tagger.setCheckpoints(checkpoint, state.getCheckpointInterval());
+    return loaded;
+  }
+
+  /**
+   * @param state Training state from a checkpoint.
+   * @return The sentence order for the next iteration.
+   */
+  private static int[] order(Perceptron.TrainingState state) {
+    int[] order = new int[state.getOrderCount()];
+    for (int i = 0 ; i < order.length ; i++) {
+      order[i] = state.getOrder(i);
+    }
+    return order;
+  }
+
+  /**
+   * Count the words and tags of a range of sentences in a binary corpus.
+   *
+   * @param corpus To count from.
+   * @param from Index of first sentence to count.
+   * @param to Index after the last sentence to count.
+   * @return The counts.
+   */
+  private static Statistics corpusStatistics(BinaryCorpus corpus, int from, int to) {
+    Statistics part = new Statistics();
+    for (int sentence = from ; sentence < to ; sentence++) {
+      long first = corpus.sentenceStart(sentence);
+      long end = first + corpus.sentenceLength(sentence);
+      for (long token = first ; token < end ; token++) {
+        part.updateWith(corpus.wordAt(token), corpus.tagAt(token));
+      }
+    }
+    return part;
+  }
+
+  /**
+   * Train the model for one iteration by training copies of it on separate shards of the sentences in parallel,
+   * and mixing the results back into the model.
+   *
+   * @param sentences To train on.
+   * @param threads Number of shards to split the sentences into.
+   * @param executor To run the shard training in.
+   * @return Number of correct predictions during the iteration.
+   */
+  private int trainParallelIteration(List<TagSentence> sentences, int threads, ExecutorService executor) {
+    List<AveragedPerceptron> shardModels = new ArrayList<>();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int shard = 0 ; shard < threads ; shard++) {
+      List<TagSentence> shardSentences = sentences.subList(shard * sentences.size() / threads, (shard + 1) * sentences.size() / threads);
+      AveragedPerceptron shardModel = model.copyForShard();
+      shardModels.add(shardModel);
+      results.add(executor.submit(() -> trainIteration(shardModel, shardSentences)));
+    }
+    int correct = 0;
+    try {
+      for (Future<Integer> result : results) {
+        correct += result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while training.", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to train a shard.", e.getCause());
+    }
+    model.mix(shardModels);
+    return correct;
+  }
+
   /**
    * Update the list of unambiguous words, meaning words that are considered to only have a single tag associated with them.
+   * The words are checked in parallel, only the words that make it to the list are then added to the map.
    */
   private void updateSingleMap() {
-    singleTags.clear();
     //minimum of 20 instances of word should be seen before classifying as ambiguous or not
     int freqThreshold = 20;
     //97% of seen instances should have the same tag to be always given that prediction
     float ambiquityThreshold = 0.97f;
-    for (String word : statistics.words()) {
-      Statistics.TagCounter tagCounter = statistics.tagCountsFor(word);
-      Statistics.TagCount max = tagCounter.max();
-      int sum = tagCounter.totalTagCount;
+    String[] single = new String[statistics.wordCount()];
+    IntStream.range(0, single.length).parallel().forEach(word -> {
+      int sum = statistics.totalCount(word);
+      if (sum <= freqThreshold) return;
+      Statistics.TagCount max = statistics.max(word);
       float fmax = max.count;
       float maxPrct = fmax / sum;
-      if (sum > freqThreshold && maxPrct >= ambiquityThreshold) {
-        singleTags.put(word, max.tag);
+      if (maxPrct >= ambiquityThreshold) {
+        single[word] = max.tag;
       }
+    });
+    List<String> words = new ArrayList<>();
+    List<String> tags = new ArrayList<>();
+    for (int word = 0 ; word < single.length ; word++) {
+      if (single[word] == null) continue;
+      words.add(statistics.word(word));
+      tags.add(single[word]);
     }
+    singleTags = CompactLexicon.of(words, tags);
   }
 
   /**
@@ -110,7 +729,7 @@ public class PerceptronTagger {
    * @param words Actual sentence words.
    * @return Given words with prefix and suffix added.
    */
-  private String[] createContext(String[] words) {
+  public static String[] createContext(String[] words) {
     String[] context = new String[2 + words.length + 2];
     System.arraycopy(START, 0, context, 0, 2);
     System.arraycopy(words, 0, context, 2, words.length);
@@ -120,30 +739,136 @@ public class PerceptronTagger {
 
   /**
    * Make a prediction for each word in the sentence and given them POS tags/labels.
+   * The words are separated by spaces, tabs or carriage returns, see split().
+   * Concurrent calls are safe as long as the tagger is not being trained at the same time.
+   * To share a tagger across threads, use freeze() to get a view that cannot be trained.
    *
    * @param sentence To tag.
    * @return Tagged sentence.
    */
   public TagSentence tag(String sentence) {
-    String[] words = sentence.split(" ");
-    words = normalize(words);
+    return tag(sentence, model, singleTags, metrics, contextCache, sentenceCache);
+  }
+
+  /**
+   * Tag a sentence with the given model. Only reads the given model and lexicon, so safe to call from several threads.
+   *
+   * @param sentence To tag.
+   * @param model To predict tags with.
+   * @param singleTags Words that always get the same tag, without prediction.
+   * @param metrics To report the tagged sentence to.
+   * @param contextCache Cached context scores for the model, null to score all features for each word.
+   * @param sentenceCache Cached results for whole sentences with the model, null to tag every sentence.
+   * @return Tagged sentence.
+   */
+  static TagSentence tag(String sentence, TagPredictor model, Lexicon singleTags, TaggerMetrics metrics,
+                         ContextScoreCache contextCache, SentenceCache sentenceCache) {
+    //no timing or counting when nothing is listening
+    boolean measure = metrics != TaggerMetrics.NONE;
+    long start = measure ? System.nanoTime() : 0;
+    String[] words = normalize(split(sentence));
+    SentenceCache.Result result = tag(words, model, singleTags, metrics, contextCache, sentenceCache, start);
+    TagSentence tokens = new TagSentence();
+    for (int i = 0 ; i < words.length ; i++) {
+      tokens.add(new WordTag(words[i], result.tags[i]));
+    }
+    return tokens;
+  }
+
+  /**
+   * Split a sentence into words at spaces, tabs and carriage returns. Several separators in a row count as one,
+   * and separators at the start or end are ignored, so there are no empty words.
+   * DocumentTagger splits its lines the same way.
+   *
+   * @param sentence To split.
+   * @return The words of the sentence.
+   */
+  static String[] split(String sentence) {
+    List<String> words = new ArrayList<>();
+    int i = 0;
+    int end = sentence.length();
+    while (true) {
+      while (i < end && isSeparator(sentence.charAt(i))) i++;
+      if (i == end) break;
+      int start = i;
+      while (i < end && !isSeparator(sentence.charAt(i))) i++;
+      words.add(sentence.substring(start, i));
+    }
+    return words.toArray(new String[words.size()]);
+  }
+
+  /**
+   * @param c The char to check.
+   * @return True if the char separates words in a sentence.
+   */
+  static boolean isSeparator(char c) {
+    return c == ' ' || c == '\t' || c == '\r';
+  }
+
+  /**
+   * Tag the given normalized words, using the sentence cache if given and reporting the sentence to the metrics.
+   *
+   * @param words The normalized words of the sentence. Must not be modified after this if a sentence cache is given.
+   * @param model To predict tags with.
+   * @param singleTags Words that always get the same tag, without prediction.
+   * @param metrics To report the tagged sentence to.
+   * @param contextCache Cached context scores for the model, null to score all features for each word.
+   * @param sentenceCache Cached results for whole sentences with the model, null to tag every sentence.
+   * @param start System.nanoTime() when handling the sentence started, to report to metrics.
+   * @return The tags for the words.
+   */
+  static SentenceCache.Result tag(String[] words, TagPredictor model, Lexicon singleTags, TaggerMetrics metrics,
+                                  ContextScoreCache contextCache, SentenceCache sentenceCache, long start) {
+    boolean measure = metrics != TaggerMetrics.NONE;
+    SentenceCache.Result result = sentenceCache == null ? null : sentenceCache.get(model, singleTags, words);
+    if (result == null) {
+      result = predict(words, model, singleTags, contextCache, measure || sentenceCache != null);
+      if (sentenceCache != null) sentenceCache.put(model, singleTags, words, result);
+    }
+    if (measure) {
+      metrics.sentenceTagged(words.length, result.singleTagWords, result.unknownWords, System.nanoTime() - start);
+    }
+    return result;
+  }
+
+  /**
+   * Predict tags for the given normalized words.
+   *
+   * @param words The normalized words of the sentence.
+   * @param model To predict tags with.
+   * @param singleTags Words that always get the same tag, without prediction.
+   * @param contextCache Cached context scores for the model, null to score all features for each word.
+   * @param count True to count the single tag and unknown words, false to leave them at 0.
+   * @return The tags for the words.
+   */
+  private static SentenceCache.Result predict(String[] words, TagPredictor model, Lexicon singleTags, ContextScoreCache contextCache, boolean count) {
+    int singleTagWords = 0;
+    int unknownWords = 0;
     String[] context = createContext(words);
     String prev1 = START[0];
     String prev2 = START[1];
-    TagSentence tokens = new TagSentence();
+    String[] tags = new String[words.length];
+    Features features = Features.forThread();
     int i = 2;
     for (String word : words) {
-      String tag = singleTags.get(word);
+      String tag = singleTags.tagFor(word);
       if (tag == null) {
-        Features features = new Features(i, word, context, prev1, prev2);
-        tag = model.predict(features).tag;
+        if (contextCache != null) {
+          tag = contextCache.predict(model, features, context, i, prev1, prev2).tag;
+        } else {
+          features.extract(i, word, context, prev1, prev2);
+          tag = model.predict(features).tag;
+        }
+        if (count && tag.equals(TagPredictor.UNKNOWN)) unknownWords++;
+      } else {
+        singleTagWords++;
       }
-      tokens.add(new WordTag(word, tag));
+      tags[i - 2] = tag;
       prev2 = prev1;
       prev1 = tag;
       i++;
     }
-    return tokens;
+    return new SentenceCache.Result(tags, singleTagWords, unknownWords);
   }
 
   /**
@@ -152,41 +877,97 @@ public class PerceptronTagger {
    * @param rawWords to normalize.
    * @return Normalized version of the words.
    */
-  public String[] normalize(String[] rawWords) {
+  public static String[] normalize(String[] rawWords) {
     String[] normalized = new String[rawWords.length];
     int i = 0;
     for (String rawWord : rawWords) {
-      Integer digits = parseDigits(rawWord);
-      if (digits != null) {
-        if (digits >= 1800 && digits <= 2100) {
-          normalized[i++] = "!YEAR";
-        } else {
-          normalized[i++] = "!DIGIT";
-        }
-        continue;
-      }
-      normalized[i++] = rawWord.toLowerCase();
+      String digits = digitToken(rawWord, 0, rawWord.length());
+      normalized[i++] = digits != null ? digits : rawWord.toLowerCase();
     }
     return normalized;
   }
 
+  /**
+   * Check if the given characters are a 4-digit number, which is normalized to !YEAR or !DIGIT.
+   * Works on a range of characters without boxing, so it can be used directly on a read buffer.
+   *
+   * @param chars The characters to check.
+   * @param start Index of first character of the word.
+   * @param end Index after the last character of the word.
+   * @return "!YEAR" for numbers 1800-2100, "!DIGIT" for other 4-digit numbers, null if not a 4-digit number.
+   */
+  static String digitToken(CharSequence chars, int start, int end) {
+    if (end - start != 4) {
+      return null;
+    }
+    int value = 0;
+    for (int i = start ; i < end ; i++) {
+      char c = chars.charAt(i);
+      if (c < '0' || c > '9') {
+        return null;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value >= 1800 && value <= 2100 ? "!YEAR" : "!DIGIT";
+  }
+
   /**
    * Parse given word to see if it is a 4-digit string between 1800-2100. If so, mark it as a year..
    *
    * @param word To parse.
    * @return Null if not an integer in scale 1800-2100, otherwise parse integer value.
    */
-  public Integer parseDigits(String word) {
+  public static Integer parseDigits(String word) {
     if (word.length() != 4) {
       return null;
     }
-    char[] chars = word.toCharArray();
-    for (char c : chars) {
+    int value = 0;
+    for (int i = 0 ; i < 4 ; i++) {
+      char c = word.charAt(i);
       if (c < '0' || c > '9') {
         return null;
       }
+      value = value * 10 + (c - '0');
     }
-    return Integer.parseInt(word);
+    return value;
+  }
+
+  /**
+   * Create a read-only view of this tagger for sharing across threads.
+   * The view keeps the current model, so training this tagger again later does not change it.
+   *
+   * @return Immutable, thread-safe tagger with the current model of this tagger.
+   */
+  public FrozenTagger freeze() {
+    if (model == null) {
+      throw new IllegalStateException("Nothing to freeze, train or load the model first.");
+    }
+    return new FrozenTagger(model, singleTags, metrics, createContextCache(contextCacheSize), sentenceCache);
+  }
+
+  /**
+   * Make the trained model smaller for tagging, by pruning small weights and optionally quantizing the rest.
+   * See AveragedPerceptron.prune() and quantize().
+   * The model cannot be trained further after this.
+   * The compacting is done on a copy of the model, so taggers from an earlier freeze() keep the model from before this.
+   *
+   * @param threshold Weights with absolute value below this are removed.
+   * @param quantizationBits Bits per weight in memory and when stored, 8 or 16. 0 to keep the weights as doubles.
+   */
+  public void compact(double threshold, int quantizationBits) {
+    if (model == null) {
+      throw new IllegalStateException("Nothing to compact, train or load the model first.");
+    }
+    int featuresBefore = model.featureCount();
+    int weightsBefore = model.weightCount();
+    AveragedPerceptron compacted = model.copy();
+    int pruned = compacted.prune(threshold);
+    if (quantizationBits > 0) {
+      compacted.quantize(quantizationBits);
+    }
+    model = compacted;
+    resetContextCache();
+    log.info("Pruned "+pruned+"/"+weightsBefore+" weights below "+threshold+", features "+featuresBefore+" -> "+model.featureCount()+".");
   }
 
   /**
@@ -195,33 +976,121 @@ public class PerceptronTagger {
    * @param pb for adding the model data to.
    */
   public void buildPB(Perceptron.PerceptronModel.Builder pb) {
-    for (String word : singleTags.keySet()) {
+    buildPB(pb, false);
+  }
+
+  /**
+   * Build a protobuf binary to store the model.
+   * Inference only leaves out the word statistics and the averaging state of the model, which are not used in tagging.
+   * This gives a much smaller model, but one that cannot be trained further.
+   *
+   * @param pb for adding the model data to.
+   * @param inferenceOnly True to only add what tagging needs, false to add everything.
+   */
+  public void buildPB(Perceptron.PerceptronModel.Builder pb, boolean inferenceOnly) {
+    for (int i = 0 ; i < singleTags.size() ; i++) {
       Perceptron.WordTag value = Perceptron.WordTag
           .newBuilder()
-          .setWord(word)
-          .setTag(singleTags.get(word))
+          .setWord(singleTags.word(i))
+          .setTag(singleTags.tag(i))
           .build();
       pb.addSingleTag(value);
     }
-    statistics.buildPB(pb);
-    model.buildPB(pb);
+    if (!inferenceOnly) {
+      statistics.buildPB(pb);
+    }
+    model.buildPB(pb, inferenceOnly);
+  }
+
+  /**
+   * Build the header for storing the model as a stream of chunks.
+   *
+   * @param inferenceOnly True to only store what tagging needs, false to store everything.
+   * @return The header to write before the chunks from buildChunks().
+   */
+  public Perceptron.ModelHeader buildHeaderPB(boolean inferenceOnly) {
+    return model.buildHeaderPB(inferenceOnly);
+  }
+
+  /**
+   * Give the model data as a stream of chunks, so the whole model never needs to be in a single protobuf message.
+   * Each chunk is passed on as soon as it is built, so only one chunk at a time is kept in memory.
+   *
+   * @param inferenceOnly True to only give what tagging needs, false to give everything.
+   * @param chunkSize Max number of entries (words, features) per chunk.
+   * @param chunks Receives each chunk once it is built.
+   */
+  public void buildChunks(boolean inferenceOnly, int chunkSize, Consumer<Perceptron.ModelChunk> chunks) {
+    Perceptron.ModelChunk.Builder chunk = Perceptron.ModelChunk.newBuilder();
+    for (int i = 0 ; i < singleTags.size() ; i++) {
+      chunk.addSingleTag(Perceptron.WordTag.newBuilder().setWord(singleTags.word(i)).setTag(singleTags.tag(i)));
+      if (chunk.getSingleTagCount() >= chunkSize) {
+        chunks.accept(chunk.build());
+        chunk = Perceptron.ModelChunk.newBuilder();
+      }
+    }
+    if (chunk.getSingleTagCount() > 0) {
+      chunks.accept(chunk.build());
+    }
+    if (!inferenceOnly) {
+      statistics.buildChunks(chunkSize, chunks);
+    }
+    model.buildChunks(inferenceOnly, chunkSize, chunks);
+  }
+
+  /**
+   * Build the prediction model from a stored stream of chunks, one chunk at a time.
+   *
+   * @param header The header of the stream.
+   * @param chunks The chunks following the header.
+   * @return The model based on the loaded data.
+   */
+  public static PerceptronTagger buildFromPB(Perceptron.ModelHeader header, Iterator<Perceptron.ModelChunk> chunks) {
+    PerceptronTagger tagger = new PerceptronTagger(header.getHashBits());
+    tagger.model = new AveragedPerceptron();
+    tagger.model.initFromPB(header);
+    List<byte[]> words = new ArrayList<>();
+    List<String> tags = new ArrayList<>();
+    while (chunks.hasNext()) {
+      Perceptron.ModelChunk chunk = chunks.next();
+      addSingleTags(chunk.getSingleTagList(), words, tags);
+      tagger.statistics.initFromPB(chunk);
+      tagger.model.initFromPB(chunk);
+    }
+    tagger.singleTags = CompactLexicon.ofUtf8(words, tags);
+    return tagger;
   }
 
   /**
    * Build the prediction model based on stored protobuf.
+   * An inference only model has empty statistics and cannot be trained further, but tags the same as the full model.
    *
    * @param model To load the model data from.
    * @return The model based on the loaded data.
    */
   public static PerceptronTagger buildFromPB(Perceptron.PerceptronModel model) {
-    PerceptronTagger tagger = new PerceptronTagger();
-    List<Perceptron.WordTag> modelSingleTagList = model.getSingleTagList();
-    for (Perceptron.WordTag singleTag : modelSingleTagList) {
-      tagger.singleTags.put(singleTag.getWord(), singleTag.getTag());
-    }
+    PerceptronTagger tagger = new PerceptronTagger(model.getHashBits());
+    List<byte[]> words = new ArrayList<>();
+    List<String> tags = new ArrayList<>();
+    addSingleTags(model.getSingleTagList(), words, tags);
+    tagger.singleTags = CompactLexicon.ofUtf8(words, tags);
     tagger.statistics.initFromPB(model);
     tagger.model = new AveragedPerceptron();
     tagger.model.initFromPB(model);
     return tagger;
   }
+
+  /**
+   * Collect the stored single tag words as their UTF-8 bytes, so no String is created for each word.
+   *
+   * @param singleTags The stored words and tags.
+   * @param words Receives the words.
+   * @param tags Receives the tags.
+   */
+  private static void addSingleTags(List<Perceptron.WordTag> singleTags, List<byte[]> words, List<String> tags) {
+    for (Perceptron.WordTag singleTag : singleTags) {
+      words.add(singleTag.getWordBytes().toByteArray());
+      tags.add(singleTag.getTag());
+    }
+  }
 }
@@ -0,0 +1,270 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.Lexicon;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of tagging results for whole sentences, keyed on the normalized words of the sentence
+ * and the model and lexicon they were tagged with.
+ * Repeated sentences (templates, headlines, boilerplate) then get their tags without any feature extraction or scoring.
+ * Safe to use from any number of tagging threads. The entries are split into segments by hash,
+ * each a least recently used map with its own lock, so threads tagging different sentences rarely wait for each other.
+ * Since the model is part of the key, one cache can be shared by taggers with different models,
+ * such as the ones frozen from a tagger before and after training it more.
+ * The key has an id for the model and lexicon instead of the objects, and the cache only holds weak references
+ * to them, so a model that is no longer used, such as after swapping in a new one, can be garbage collected
+ * even while its entries are still in the cache. Those entries are not looked up again and get evicted over time.
+ *
+ * @author Teemu Kanstren.
+ */
+public class SentenceCache {
+  /** Max number of segments, each with its own lock. */
+  private static final int MAX_SEGMENTS = 16;
+  private final Segment[] segments;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  /** The models and lexicons tagged with so far and their ids. Replaced as a whole when one is added. */
+  private volatile Generation[] generations = new Generation[0];
+  /** Id for the next model and lexicon, guarded by this. */
+  private long nextGeneration = 0;
+
+  /**
+   * @param capacity Max number of sentences to keep in the cache.
+   */
+  public SentenceCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Cache capacity should be positive, was "+capacity);
+    }
+    int segmentCount = Math.min(MAX_SEGMENTS, capacity);
+    segments = new Segment[segmentCount];
+    for (int i = 0 ; i < segmentCount ; i++) {
+      //spread the capacity over the segments so the total stays within the given capacity
+      int segmentCapacity = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+      segments[i] = new Segment(segmentCapacity);
+    }
+  }
+
+  private Segment segmentFor(Key key) {
+    int h = key.hash;
+    h ^= h >>> 16;
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * @param model The model the sentence is tagged with.
+   * @param singleTags The lexicon the sentence is tagged with.
+   * @param words Normalized words of the sentence.
+   * @return The cached result for the sentence, or null if not cached.
+   */
+  Result get(TagPredictor model, Lexicon singleTags, String[] words) {
+    Key key = new Key(generation(model, singleTags), words);
+    Segment segment = segmentFor(key);
+    Result result;
+    synchronized (segment) {
+      result = segment.get(key);
+    }
+    if (result == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return result;
+  }
+
+  /**
+   * @param model The model the sentence was tagged with.
+   * @param singleTags The lexicon the sentence was tagged with.
+   * @param words Normalized words of the sentence. Must not be modified after this.
+   * @param result Tagging result for the sentence.
+   */
+  void put(TagPredictor model, Lexicon singleTags, String[] words, Result result) {
+    Key key = new Key(generation(model, singleTags), words);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key, result);
+    }
+  }
+
+  /**
+   * @param model The model to tag with.
+   * @param singleTags The lexicon to tag with.
+   * @return Id for the model and lexicon pair, the same for as long as both are in use.
+   */
+  private long generation(TagPredictor model, Lexicon singleTags) {
+    //usually just one or two models, so a scan without locking is the fast path
+    for (Generation generation : generations) {
+      if (generation.matches(model, singleTags)) return generation.id;
+    }
+    return addGeneration(model, singleTags);
+  }
+
+  /**
+   * Give a new id to a model and lexicon pair, dropping the ones whose model or lexicon has been garbage collected.
+   */
+  private synchronized long addGeneration(TagPredictor model, Lexicon singleTags) {
+    List<Generation> live = new ArrayList<>();
+    for (Generation generation : generations) {
+      //another thread may have added it meanwhile
+      if (generation.matches(model, singleTags)) return generation.id;
+      if (!generation.isCollected()) live.add(generation);
+    }
+    Generation added = new Generation(nextGeneration++, model, singleTags);
+    live.add(added);
+    generations = live.toArray(new Generation[live.size()]);
+    return added.id;
+  }
+
+  /**
+   * Remove all cached sentences. The statistics are kept.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return Number of sentences currently cached.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return Number of lookups that found the sentence in the cache.
+   */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return Number of lookups that did not find the sentence in the cache.
+   */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return Number of sentences removed to make space for new ones.
+   */
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return Share of lookups that were hits, 0 if no lookups yet.
+   */
+  public double hitRate() {
+    long hits = hits();
+    long total = hits + misses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return "SentenceCache{size="+size()+", hits="+hits()+", misses="+misses()+", evictions="+evictions()+"}";
+  }
+
+  /**
+   * One part of the cache, a least recently used map guarded by its own monitor.
+   */
+  private class Segment extends LinkedHashMap<Key, Result> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    private Segment(int capacity) {
+      //access order makes the iteration order least recently used first, so the eldest entry is the one to remove
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+      if (size() <= capacity) return false;
+      evictions.increment();
+      return true;
+    }
+  }
+
+  /**
+   * A model and lexicon pair with its id, held weakly so the cache does not keep them in memory.
+   */
+  private static class Generation {
+    private final long id;
+    private final WeakReference<TagPredictor> model;
+    private final WeakReference<Lexicon> singleTags;
+
+    private Generation(long id, TagPredictor model, Lexicon singleTags) {
+      this.id = id;
+      this.model = new WeakReference<>(model);
+      this.singleTags = new WeakReference<>(singleTags);
+    }
+
+    private boolean matches(TagPredictor model, Lexicon singleTags) {
+      return this.model.get() == model && this.singleTags.get() == singleTags;
+    }
+
+    private boolean isCollected() {
+      return model.get() == null || singleTags.get() == null;
+    }
+  }
+
+  /**
+   * The normalized words of a sentence, compared by content, and the id of the model and lexicon they were tagged with.
+   */
+  private static class Key {
+    private final long generation;
+    private final String[] words;
+    private final int hash;
+
+    private Key(long generation, String[] words) {
+      this.generation = generation;
+      this.words = words;
+      this.hash = Arrays.hashCode(words) * 31 + Long.hashCode(generation);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return hash == other.hash && generation == other.generation && Arrays.equals(words, other.words);
+    }
+  }
+
+  /**
+   * Tags for a sentence, with the counts needed to report it to metrics again. Not modified after creation.
+   */
+  static class Result {
+    final String[] tags;
+    final int singleTagWords;
+    final int unknownWords;
+
+    Result(String[] tags, int singleTagWords, int unknownWords) {
+      this.tags = tags;
+      this.singleTagWords = singleTagWords;
+      this.unknownWords = unknownWords;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package net.kanstren.littlepos;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random numbers for shuffling the training sentences, with all of its state in a single long,
+ * so a checkpoint can store it as a plain number and resume from exactly the same point.
+ * Uses the same 48-bit linear congruential generator and nextInt() as java.util.Random,
+ * so a seed gives the same shuffles as with java.util.Random.
+ *
+ * @author Teemu Kanstren.
+ */
+class ShuffleRandom {
+  private static final long MULTIPLIER = 0x5DEECE66DL;
+  private static final long ADDEND = 0xBL;
+  private static final long MASK = (1L << 48) - 1;
+  /** The generator state, 48 bits. */
+  private long state;
+
+  private ShuffleRandom(long state) {
+    this.state = state;
+  }
+
+  /**
+   * @param seed The seed, scrambled the same way as in java.util.Random.
+   * @return Random starting from the seed.
+   */
+  static ShuffleRandom seeded(long seed) {
+    return new ShuffleRandom((seed ^ MULTIPLIER) & MASK);
+  }
+
+  /**
+   * @return Random with a different seed each time.
+   */
+  static ShuffleRandom unseeded() {
+    return seeded(ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * @param state A state from state().
+   * @return Random continuing from the state.
+   */
+  static ShuffleRandom fromState(long state) {
+    if ((state & ~MASK) != 0) {
+      throw new IllegalArgumentException("Invalid random state "+state+", must fit in 48 bits.");
+    }
+    return new ShuffleRandom(state);
+  }
+
+  /**
+   * @return The current state, to continue from with fromState().
+   */
+  long state() {
+    return state;
+  }
+
+  /**
+   * @param bound Upper bound, exclusive. Must be positive.
+   * @return A uniformly distributed int between 0 and bound.
+   */
+  int nextInt(int bound) {
+    if (bound <= 0) {
+      throw new IllegalArgumentException("Bound must be positive, was "+bound+".");
+    }
+    int r = next(31);
+    int m = bound - 1;
+    if ((bound & m) == 0) {
+      //power of two, take the high bits
+      return (int) ((bound * (long) r) >> 31);
+    }
+    //reject values from the last partial range to avoid bias
+    for (int u = r ; u - (r = u % bound) + m < 0 ; u = next(31)) {
+    }
+    return r;
+  }
+
+  private int next(int bits) {
+    state = (state * MULTIPLIER + ADDEND) & MASK;
+    return (int) (state >>> (48 - bits));
+  }
+
+  @Override
+  public String toString() {
+    return "ShuffleRandom{state="+state+"}";
+  }
+}
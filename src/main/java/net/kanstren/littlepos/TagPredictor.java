@@ -0,0 +1,51 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.TagScore;
+
+/**
+ * Predicts tags from features with trained weights.
+ * Implemented by the AveragedPerceptron that is trained, and by the read-only model formats it can be exported to.
+ *
+ * @author Teemu Kanstren.
+ */
+public interface TagPredictor {
+  /** Tag predicted when none of the features have a weight, so there is nothing to base the prediction on. */
+  String UNKNOWN = "UNKNOWN";
+
+  /**
+   * Predict a tag from the given set of features.
+   *
+   * @param features To predict from.
+   * @return Highest scoring tag for the features. If there is a tie, its an alphabetic sort by tag name.
+   */
+  default TagScore predict(Features features) {
+    double[] scores = new double[tagCount()];
+    boolean found = addScores(features, 0, features.size(), scores);
+    return best(scores, found);
+  }
+
+  /**
+   * @return Number of tags, which is the size of the score arrays.
+   */
+  int tagCount();
+
+  /**
+   * Add the weights for a range of the extracted features to the given tag scores.
+   * This allows scoring the word context features once and reusing those scores, see Features.extractContext().
+   *
+   * @param features The extracted features.
+   * @param from Index of the first feature to add.
+   * @param to Index after the last feature to add.
+   * @param scores Scores to add to, indexed by tag id.
+   * @return True if any of the features had a non-zero weight.
+   */
+  boolean addScores(Features features, int from, int to, double[] scores);
+
+  /**
+   * @param scores Summed scores for all the features, indexed by tag id.
+   * @param found True if any of the features had a non-zero weight.
+   * @return Highest scoring tag, as in predict(). UNKNOWN if no feature had a weight.
+   */
+  TagScore best(double[] scores, boolean found);
+}
@@ -0,0 +1,261 @@
+package net.kanstren.littlepos.corpus;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Training corpus in a compact binary format, read through a memory mapped file.
+ * Words and tags are stored as int ids, so the heap only holds the vocabulary (and not the sentences)
+ * no matter how large the corpus is.
+ * Create the file once from the CoNLL-X style text with convert(), and open it for training with open().
+ *
+ * The file layout is:
+ * - header: magic, version, word count, tag count, sentence count, token count, offset section position.
+ * - vocabulary: all words and then all tags, as modified UTF-8 strings. The index of a string is its id.
+ * - offsets: index of first token for each sentence, plus one after the last sentence, as longs.
+ * - tokens: word id and tag id for each token, as ints.
+ *
+ * @author Teemu Kanstren.
+ */
+public class BinaryCorpus {
+  private static final Logger log = LogManager.getLogger();
+  /** "LPCB" as in little pos corpus binary. */
+  private static final int MAGIC = 0x4c504342;
+  private static final int VERSION = 1;
+  /** Bytes in the fixed size header. */
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 8 + 8;
+  /** Tokens per mapped segment of the token section. A buffer can map at most 2GB, this is 1GB of tokens. */
+  private static final int SEGMENT_BITS = 27;
+  /** Words by word id. */
+  private final String[] words;
+  /** Tags by tag id. */
+  private final String[] tags;
+  /** Number of sentences in the corpus. */
+  private final int sentenceCount;
+  /** Number of tokens (words) in the corpus. */
+  private final long tokenCount;
+  /** Index of the first token of each sentence, mapped from the file. */
+  private final LongBuffer offsets;
+  /** Word and tag ids for tokens, in consecutive segments of the file. */
+  private final IntBuffer[] tokens;
+
+  private BinaryCorpus(String[] words, String[] tags, int sentenceCount, long tokenCount, LongBuffer offsets, IntBuffer[] tokens) {
+    this.words = words;
+    this.tags = tags;
+    this.sentenceCount = sentenceCount;
+    this.tokenCount = tokenCount;
+    this.offsets = offsets;
+    this.tokens = tokens;
+  }
+
+  /**
+   * Convert a CoNLL-X style text file into the binary corpus format.
+   * The text is expected to have one "word tag" pair per line, with sentences separated by lines with less than two items,
+   * such as empty lines. This is the same format that FTBLoader reads.
+   *
+   * @param textFile The text file to convert.
+   * @param corpusFile The binary file to write.
+   * @throws IOException If reading or writing fails.
+   */
+  public static void convert(Path textFile, Path corpusFile) throws IOException {
+    Map<String, Integer> wordIds = new LinkedHashMap<>();
+    Map<String, Integer> tagIds = new LinkedHashMap<>();
+    long[] sentenceOffsets = new long[1024];
+    int sentenceCount = 0;
+    long tokenCount = 0;
+    long sentenceStart = 0;
+    //tokens go to a temporary file first, since the vocabulary and offsets have to be written before them
+    Path tokenFile = Files.createTempFile(corpusFile.toAbsolutePath().getParent(), "tokens", ".tmp");
+    try {
+      try (BufferedReader reader = Files.newBufferedReader(textFile, StandardCharsets.UTF_8);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tokenFile)))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] split = line.split(" ");
+          if (split.length < 2) {
+            if (tokenCount > sentenceStart) {
+              if (sentenceCount + 1 == sentenceOffsets.length) {
+                sentenceOffsets = Arrays.copyOf(sentenceOffsets, sentenceOffsets.length * 2);
+              }
+              sentenceOffsets[sentenceCount++] = sentenceStart;
+              sentenceStart = tokenCount;
+            }
+            continue;
+          }
+          out.writeInt(wordIds.computeIfAbsent(split[0], w -> wordIds.size()));
+          out.writeInt(tagIds.computeIfAbsent(split[1], t -> tagIds.size()));
+          tokenCount++;
+        }
+        //room for the last sentence and the end offset
+        if (sentenceCount + 2 > sentenceOffsets.length) {
+          sentenceOffsets = Arrays.copyOf(sentenceOffsets, sentenceOffsets.length * 2);
+        }
+        //the last sentence may not have an empty line after it
+        if (tokenCount > sentenceStart) {
+          sentenceOffsets[sentenceCount++] = sentenceStart;
+        }
+        sentenceOffsets[sentenceCount] = tokenCount;
+      }
+      ByteArrayOutputStream vocabulary = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(vocabulary)) {
+        for (String word : wordIds.keySet()) {
+          out.writeUTF(word);
+        }
+        for (String tag : tagIds.keySet()) {
+          out.writeUTF(tag);
+        }
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(corpusFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(wordIds.size());
+        out.writeInt(tagIds.size());
+        out.writeInt(sentenceCount);
+        out.writeLong(tokenCount);
+        out.writeLong(HEADER_SIZE + vocabulary.size());
+        vocabulary.writeTo(out);
+        for (int i = 0 ; i <= sentenceCount ; i++) {
+          out.writeLong(sentenceOffsets[i]);
+        }
+        Files.copy(tokenFile, out);
+      }
+    } finally {
+      Files.deleteIfExists(tokenFile);
+    }
+    log.info("Converted "+textFile+" to "+corpusFile+": "+sentenceCount+" sentences, "+tokenCount+" tokens, "
+        +wordIds.size()+" words, "+tagIds.size()+" tags.");
+  }
+
+  /**
+   * Open a binary corpus file created with convert().
+   * The vocabulary is read into memory, the sentences are memory mapped from the file.
+   *
+   * @param corpusFile The file to open.
+   * @return The corpus.
+   * @throws IOException If reading the file fails.
+   */
+  public static BinaryCorpus open(Path corpusFile) throws IOException {
+    String[] words;
+    String[] tags;
+    int sentenceCount;
+    long tokenCount;
+    long offsetsPosition;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(corpusFile)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a binary corpus file: "+corpusFile);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary corpus version "+version+" in "+corpusFile);
+      }
+      words = new String[in.readInt()];
+      tags = new String[in.readInt()];
+      sentenceCount = in.readInt();
+      tokenCount = in.readLong();
+      offsetsPosition = in.readLong();
+      readStrings(in, words);
+      readStrings(in, tags);
+    }
+    try (FileChannel channel = FileChannel.open(corpusFile, StandardOpenOption.READ)) {
+      long offsetsSize = (sentenceCount + 1L) * 8;
+      if (offsetsSize > Integer.MAX_VALUE) {
+        throw new IOException("Too many sentences to map: "+sentenceCount);
+      }
+      LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, offsetsPosition, offsetsSize).asLongBuffer();
+      long tokensPosition = offsetsPosition + offsetsSize;
+      int segmentCount = (int) ((tokenCount + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+      IntBuffer[] tokens = new IntBuffer[segmentCount];
+      for (int segment = 0 ; segment < segmentCount ; segment++) {
+        long first = (long) segment << SEGMENT_BITS;
+        long count = Math.min(1L << SEGMENT_BITS, tokenCount - first);
+        //the mapping stays valid after the channel is closed
+        tokens[segment] = channel.map(FileChannel.MapMode.READ_ONLY, tokensPosition + first * 8, count * 8).asIntBuffer();
+      }
+      return new BinaryCorpus(words, tags, sentenceCount, tokenCount, offsets, tokens);
+    }
+  }
+
+  private static void readStrings(DataInputStream in, String[] strings) throws IOException {
+    for (int i = 0 ; i < strings.length ; i++) {
+      strings[i] = in.readUTF();
+    }
+  }
+
+  /**
+   * @return Number of sentences in the corpus.
+   */
+  public int sentenceCount() {
+    return sentenceCount;
+  }
+
+  /**
+   * @return Number of tokens (words) in the corpus.
+   */
+  public long tokenCount() {
+    return tokenCount;
+  }
+
+  /**
+   * @param sentence Index of the sentence.
+   * @return Index of the first token in the sentence.
+   */
+  public long sentenceStart(int sentence) {
+    return offsets.get(sentence);
+  }
+
+  /**
+   * @param sentence Index of the sentence.
+   * @return Number of tokens in the sentence.
+   */
+  public int sentenceLength(int sentence) {
+    return (int) (offsets.get(sentence + 1) - offsets.get(sentence));
+  }
+
+  /**
+   * @param token Index of the token in the corpus.
+   * @return The word of the token.
+   */
+  public String wordAt(long token) {
+    return words[tokens[(int) (token >>> SEGMENT_BITS)].get(tokenSlot(token))];
+  }
+
+  /**
+   * @param token Index of the token in the corpus.
+   * @return The tag of the token.
+   */
+  public String tagAt(long token) {
+    return tags[tokens[(int) (token >>> SEGMENT_BITS)].get(tokenSlot(token) + 1)];
+  }
+
+  /**
+   * @return Index of the word id of a token in its segment, the tag id is the next one.
+   */
+  private static int tokenSlot(long token) {
+    return (int) (token & ((1L << SEGMENT_BITS) - 1)) * 2;
+  }
+
+  /**
+   * @return All the different tags in the corpus.
+   */
+  public String[] tags() {
+    return tags.clone();
+  }
+}
@@ -0,0 +1,278 @@
+package net.kanstren.littlepos.datamodel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Immutable lexicon with the words stored as UTF-8 bytes in a single array, instead of a String and a map entry per word.
+ * The words are sorted in unsigned byte order and found through an offset table, with the tags as small ints.
+ * Lookups go through an open addressing table of word ids by the String hash of the word,
+ * and compare the word to the stored bytes by encoding it on the fly, so a lookup creates no objects.
+ * Unpaired surrogates in a word encode to '?' as in String.getBytes(), and are hashed as '?' too, so such words are found.
+ * This takes a fraction of the memory of a HashMap with the same words, and keeps the data in a few flat arrays.
+ *
+ * @author Teemu Kanstren
+ */
+public final class CompactLexicon implements Lexicon {
+  /** Lexicon with no words. */
+  public static final CompactLexicon EMPTY = of(new ArrayList<>(), new ArrayList<>());
+  /** The UTF-8 bytes of all the words, one after the other in sorted order. */
+  private final byte[] bytes;
+  /** Start of each word in bytes, plus the end of the last word. */
+  private final int[] offsets;
+  /** Tag id of each word, index into tags. */
+  private final short[] tagIds;
+  /** The tags, sorted. */
+  private final String[] tags;
+  /** Hash slots, holding word id + 1 for the word in the slot, 0 for a free slot. */
+  private final int[] slots;
+
+  private CompactLexicon(byte[] bytes, int[] offsets, short[] tagIds, String[] tags, int[] slots) {
+    this.bytes = bytes;
+    this.offsets = offsets;
+    this.tagIds = tagIds;
+    this.tags = tags;
+    this.slots = slots;
+  }
+
+  /**
+   * @param wordTags Words and their tags.
+   * @return Lexicon with the given words and tags.
+   */
+  public static CompactLexicon of(Map<String, String> wordTags) {
+    return of(new ArrayList<>(wordTags.keySet()), new ArrayList<>(wordTags.values()));
+  }
+
+  /**
+   * @param words The words.
+   * @param wordTags Tag for each word, in the same order as the words. If a word is given more than once, the last tag is kept.
+   * @return Lexicon with the given words and tags.
+   */
+  public static CompactLexicon of(List<String> words, List<String> wordTags) {
+    List<byte[]> encoded = new ArrayList<>(words.size());
+    for (String word : words) {
+      encoded.add(word.getBytes(StandardCharsets.UTF_8));
+    }
+    return ofUtf8(encoded, wordTags);
+  }
+
+  /**
+   * Build from words already encoded as UTF-8, such as from a stored model, without creating a String for each word.
+   *
+   * @param words The UTF-8 bytes of each word.
+   * @param wordTags Tag for each word, in the same order as the words. If a word is given more than once, the last tag is kept.
+   * @return Lexicon with the given words and tags.
+   */
+  public static CompactLexicon ofUtf8(List<byte[]> words, List<String> wordTags) {
+    if (words.size() != wordTags.size()) {
+      throw new IllegalArgumentException("Got "+words.size()+" words but "+wordTags.size()+" tags.");
+    }
+    String[] tags = new TreeSet<>(wordTags).toArray(new String[0]);
+    if (tags.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many tags for the lexicon: "+tags.length);
+    }
+    byte[][] encoded = words.toArray(new byte[0][]);
+    Integer[] order = new Integer[encoded.length];
+    for (int i = 0 ; i < encoded.length ; i++) {
+      order[i] = i;
+    }
+    //stable sort, so for a word given more than once the last one given is last in its run
+    Arrays.sort(order, Comparator.comparing((Integer i) -> encoded[i], CompactLexicon::compare));
+    int count = 0;
+    int byteCount = 0;
+    for (int i = 0 ; i < order.length ; i++) {
+      if (i + 1 < order.length && compare(encoded[order[i]], encoded[order[i + 1]]) == 0) continue;
+      order[count++] = order[i];
+      byteCount += encoded[order[i]].length;
+    }
+    byte[] bytes = new byte[byteCount];
+    int[] offsets = new int[count + 1];
+    short[] tagIds = new short[count];
+    int capacity = 16;
+    while (capacity < count * 2) {
+      capacity <<= 1;
+    }
+    int[] slots = new int[capacity];
+    int mask = capacity - 1;
+    int position = 0;
+    for (int id = 0 ; id < count ; id++) {
+      int word = order[id];
+      offsets[id] = position;
+      System.arraycopy(encoded[word], 0, bytes, position, encoded[word].length);
+      position += encoded[word].length;
+      tagIds[id] = (short) Arrays.binarySearch(tags, wordTags.get(word));
+      int slot = mix(hash(encoded[word])) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+    offsets[count] = position;
+    return new CompactLexicon(bytes, offsets, tagIds, tags, slots);
+  }
+
+  /**
+   * Compare in unsigned byte order, the same as the UTF-8 encoded words are ordered in the mapped model files.
+   */
+  private static int compare(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0 ; i < length ; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) return diff;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * @param utf8 UTF-8 bytes of a word.
+   * @return String.hashCode() of the word decoded from the bytes, the same as hash(String) for the word.
+   */
+  private static int hash(byte[] utf8) {
+    int h = 0;
+    for (byte b : utf8) {
+      //anything but ASCII is decoded to get the UTF-16 chars the String hash is over
+      if (b < 0) return new String(utf8, StandardCharsets.UTF_8).hashCode();
+      h = 31 * h + b;
+    }
+    return h;
+  }
+
+  /**
+   * Hash the word over the same chars as matches() encodes, so it is the same as hash(byte[]) of the encoded word.
+   * This is String.hashCode() except for unpaired surrogates, which are hashed as the '?' they encode to.
+   *
+   * @param word The word to hash.
+   * @return The hash for looking up the word.
+   */
+  private static int hash(String word) {
+    int h = 0;
+    int length = word.length();
+    for (int i = 0 ; i < length ; i++) {
+      char c = word.charAt(i);
+      if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(word.charAt(i + 1))) {
+          h = 31 * (31 * h + c) + word.charAt(++i);
+          continue;
+        }
+        c = '?';
+      }
+      h = 31 * h + c;
+    }
+    return h;
+  }
+
+  /**
+   * Spread the hash bits, since slots are picked from the low bits only.
+   */
+  private static int mix(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Words are stored as UTF-8, in which an unpaired surrogate char has no encoding and is replaced with '?',
+   * the same as String.getBytes() does. So a word with unpaired surrogates is stored and looked up as its '?' form,
+   * and words that only differ in such chars, or in having '?' in their place, share one entry and tag.
+   * Real text does not have unpaired surrogates, they come from broken input.
+   *
+   * @param word The (normalized) word to look up.
+   * @return The tag for the word, or null if the word does not always have the same tag.
+   */
+  @Override
+  public String tagFor(String word) {
+    int mask = slots.length - 1;
+    int slot = mix(hash(word)) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (matches(word, offsets[id], offsets[id + 1])) return tags[tagIds[id]];
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Check if a word is the same as the UTF-8 bytes in the given range, encoding the word on the fly.
+   *
+   * @param word The word to check.
+   * @param start Start of the bytes to compare to.
+   * @param end End of the bytes to compare to.
+   * @return True if the UTF-8 encoding of the word is the same as the bytes.
+   */
+  private boolean matches(String word, int start, int end) {
+    int position = start;
+    int length = word.length();
+    for (int i = 0 ; i < length ; i++) {
+      int c = word.charAt(i);
+      if (c < 0x80) {
+        //most words are mostly ASCII
+        if (position == end || bytes[position++] != c) return false;
+        continue;
+      }
+      if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(word.charAt(i + 1))) {
+        c = Character.toCodePoint((char) c, word.charAt(++i));
+      } else if (Character.isSurrogate((char) c)) {
+        //same as String.getBytes() for unpaired surrogates
+        c = '?';
+      }
+      int byteCount = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+      for (int b = 0 ; b < byteCount ; b++) {
+        if (position == end || (bytes[position++] & 0xff) != utf8Byte(c, byteCount, b)) return false;
+      }
+    }
+    return position == end;
+  }
+
+  /**
+   * @param c Code point to encode.
+   * @param byteCount Number of bytes in the UTF-8 encoding of the code point.
+   * @param index Which byte of the encoding to give.
+   * @return The byte at given index in the UTF-8 encoding of the code point.
+   */
+  private static int utf8Byte(int c, int byteCount, int index) {
+    if (byteCount == 1) return c;
+    int shift = 6 * (byteCount - 1 - index);
+    if (index > 0) return 0x80 | ((c >> shift) & 0x3f);
+    int lead = byteCount == 2 ? 0xc0 : byteCount == 3 ? 0xe0 : 0xf0;
+    return lead | (c >> shift);
+  }
+
+  /**
+   * @return Number of words in the lexicon.
+   */
+  public int size() {
+    return tagIds.length;
+  }
+
+  /**
+   * @param id Index of the word, from 0 to size()-1 in sorted order.
+   * @return The word, decoded from its bytes.
+   */
+  public String word(int id) {
+    return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param id Index of the word, from 0 to size()-1 in sorted order.
+   * @return The tag of the word.
+   */
+  public String tag(int id) {
+    return tags[tagIds[id]];
+  }
+
+  /**
+   * @return Approximate memory taken by the lexicon data, in bytes. Not counting the few tag strings.
+   */
+  public long sizeInBytes() {
+    return bytes.length + offsets.length * 4L + tagIds.length * 2L + slots.length * 4L;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactLexicon{words="+size()+", tags="+tags.length+", bytes="+sizeInBytes()+"}";
+  }
+}
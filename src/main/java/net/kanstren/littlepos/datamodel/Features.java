@@ -1,74 +1,174 @@
 package net.kanstren.littlepos.datamodel;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Features the tag prediction is based on.
+ * Each feature is given as a 64-bit hash of its name, such as "i-suffix abc" for suffix "abc" of the current word.
+ * The hashes are calculated directly over the word characters into a preallocated buffer,
+ * so extracting features for a word does not create any objects.
+ * One instance is reused for all words, so it should not be shared across threads. Use forThread() to get one.
+ * The features from the words (context) come first, followed by the ones from the previous tags (history).
+ * This allows scoring the context features once for a word window and reusing that, see extractContext().
  *
  * @author Teemu Kanstren
  */
 public class Features {
-  /** Key = feature id, value = value to add to overall feature weight. Value is practically just 1 now...*/
-  private Map<String, Integer> features = new HashMap<>();
+  /** Number of features extracted for each word. */
+  public static final int SIZE = 14;
+  /** Number of features that depend only on the words, at indices 0 to CONTEXT_SIZE-1. The rest depend on the previous tags. */
+  public static final int CONTEXT_SIZE = 10;
+  /** FNV-1a 64-bit offset basis. */
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  /** FNV-1a 64-bit prime. */
+  private static final long FNV_PRIME = 0x100000001b3L;
+  //hashes of the feature name prefixes, the feature value characters are hashed on top of these
+  private static final long BIAS = hash("bias");
+  private static final long I_SUFFIX = hash("i-suffix ");
+  private static final long I_PREFIX_1 = hash("i-prefix-1 ");
+  private static final long PREV_TAG_1 = hash("prev-tag-1 ");
+  private static final long PREV_TAG_2 = hash("prev-tag-2 ");
+  private static final long PREV_TAG_1_AND_2 = hash("prev-tag-1-and-2 ");
+  private static final long I_WORD = hash("i-word ");
+  private static final long PREV_TAG_AND_WORD = hash("prev-tag-and-word ");
+  private static final long PREV_WORD = hash("prev-word ");
+  private static final long PREV_WORD_SUFFIX = hash("prev-word-suffix ");
+  private static final long PREV_WORD_2 = hash("prev-word-2 ");
+  private static final long NEXT_WORD = hash("next-word ");
+  private static final long NEXT_WORD_SUFFIX = hash("next-word-suffix ");
+  private static final long NEXT_WORD_2 = hash("next-word-2 ");
+  /** One reusable instance per thread. */
+  private static final ThreadLocal<Features> perThread = ThreadLocal.withInitial(Features::new);
+  /** Hash for each feature of the last extracted word. */
+  private final long[] ids = new long[SIZE];
+
+  /**
+   * @return The feature extractor for the calling thread.
+   */
+  public static Features forThread() {
+    return perThread.get();
+  }
+
+  /**
+   * Extract the features for a word, replacing the ones from the previous word.
+   *
+   * @param i Index of the word in the context.
+   * @param word The word being analyzed.
+   * @param context The sentence words, with START,START prefix and END,END suffix.
+   * @param prev1 Tag given to previous word.
+   * @param prev2 Tag given to previous word of previous word.
+   * @return This object, for chaining.
+   */
+  public Features extract(int i, String word, String[] context, String prev1, String prev2) {
+    extractContext(i, word, context);
+    return extractHistory(i, context, prev1, prev2);
+  }
 
-  public Features(int i, String word, String[] context, String prev1, String prev2) {
+  /**
+   * Extract the features that depend only on the words, at indices 0 to CONTEXT_SIZE-1.
+   * These are the same for any word with the same two words before and after it, whatever the previous tags are.
+   *
+   * @param i Index of the word in the context.
+   * @param word The word being analyzed.
+   * @param context The sentence words, with START,START prefix and END,END suffix.
+   * @return This object, for chaining.
+   */
+  public Features extractContext(int i, String word, String[] context) {
     //for some reason the original author says a constant bias is good. what do i know so just keep it..
-    add("bias");
+    ids[0] = BIAS;
     //suffix of the word being analyzed. by default it is last 3 chars, unless the word is shorter
-    //->should probably toss shorter words already before coming here
-    if (word.length() > 3)
-      add("i-suffix", word.substring(word.length() - 3));
-    else
-      add("i-suffix", word.substring(word.length() - 1));
+    ids[1] = suffix(I_SUFFIX, word);
     //prefix of the word being analyzed. the first char
-    add("i-prefix-1", ""+word.charAt(0));
-    //tag given to previous word
-    add("prev-tag-1", prev1);
-    //tag given to previous word of previous word
-    add("prev-tag-2", prev2);
-    //pair of previous two tags
-    add("prev-tag-1-and-2", prev1 + prev2);
+    ids[2] = hash(I_PREFIX_1, word, 0, 1);
     //word being analyzed
-    add("i-word", context[i]);
-    //pair of tag for previous word and the current word itself being analyzed
-    add("prev-tag-and-word", prev1 + context[i]);
+    ids[3] = hash(I_WORD, context[i]);
     String prevWord = context[i - 1];
     //same type of features for previous word in sentence and the following word in sentence
     //since the "context" has the prefix and suffix added these indices should always work
     //that is, the context is actuallt START,START,SENTENCEWORDS,END,END so the indices are never out of bounds with -2 or +2
-    add("prev-word", prevWord);
-    if (prevWord.length() > 3)
-      add("prev-word-suffix", prevWord.substring(prevWord.length() - 3));
-    else
-      add("prev-word-suffix", prevWord.substring(prevWord.length() - 1));
-    add("prev-word-2", context[i - 2]);
+    ids[4] = hash(PREV_WORD, prevWord);
+    ids[5] = suffix(PREV_WORD_SUFFIX, prevWord);
+    ids[6] = hash(PREV_WORD_2, context[i - 2]);
     String nextWord = context[i + 1];
-    add("next-word", nextWord);
-    if (nextWord.length() > 3)
-      add("next-word-suffix", nextWord.substring(nextWord.length() - 3));
-    else
-      add("next-word-suffix", nextWord.substring(nextWord.length() - 1));
-    add("next-word-2", context[i + 2]);
+    ids[7] = hash(NEXT_WORD, nextWord);
+    ids[8] = suffix(NEXT_WORD_SUFFIX, nextWord);
+    ids[9] = hash(NEXT_WORD_2, context[i + 2]);
+    return this;
+  }
+
+  /**
+   * Extract the features that depend on the tags given to the previous words, at indices CONTEXT_SIZE to SIZE-1.
+   *
+   * @param i Index of the word in the context.
+   * @param context The sentence words, with START,START prefix and END,END suffix.
+   * @param prev1 Tag given to previous word.
+   * @param prev2 Tag given to previous word of previous word.
+   * @return This object, for chaining.
+   */
+  public Features extractHistory(int i, String[] context, String prev1, String prev2) {
+    //tag given to previous word
+    ids[10] = hash(PREV_TAG_1, prev1);
+    //tag given to previous word of previous word
+    ids[11] = hash(PREV_TAG_2, prev2);
+    //pair of previous two tags
+    ids[12] = hash(hash(PREV_TAG_1_AND_2, prev1), prev2);
+    //pair of tag for previous word and the current word itself being analyzed
+    ids[13] = hash(hash(PREV_TAG_AND_WORD, prev1), context[i]);
+    return this;
   }
 
-  private void add(String... names) {
-    StringBuilder fullName = new StringBuilder();
-    for (String name : names) {
-      fullName.append(name);
-      fullName.append(" ");
+  /**
+   * Suffix of a word: last 3 chars, or just the last char for words of 3 chars or less.
+   */
+  private static long suffix(long h, String word) {
+    int length = word.length();
+    int start = length > 3 ? length - 3 : length - 1;
+    return hash(h, word, start, length);
+  }
+
+  private static long hash(long h, String s) {
+    return hash(h, s, 0, s.length());
+  }
+
+  /**
+   * Continue a FNV-1a hash over the given range of characters.
+   *
+   * @param h Hash so far.
+   * @param s Characters to hash.
+   * @param start First character index to hash.
+   * @param end Index after last character to hash.
+   * @return The updated hash.
+   */
+  private static long hash(long h, CharSequence s, int start, int end) {
+    for (int i = start ; i < end ; i++) {
+      char c = s.charAt(i);
+      //both bytes of the char so that any text hashes the same as its feature name string
+      h = (h ^ (c & 0xff)) * FNV_PRIME;
+      h = (h ^ (c >>> 8)) * FNV_PRIME;
     }
-    String key = fullName.toString().trim();
-    features.put(key, 1);
+    return h;
   }
 
-  public Collection<String> keys() {
-    return features.keySet();
+  /**
+   * Gives the id of a feature by its name, e.g. for models stored with feature names.
+   *
+   * @param name Feature name, such as "i-suffix abc".
+   * @return 64-bit hash id for the feature.
+   */
+  public static long hash(String name) {
+    return hash(FNV_OFFSET, name, 0, name.length());
   }
 
-  public int valueFor(String fname) {
-    return features.getOrDefault(fname, 0);
+  /**
+   * @return Number of features.
+   */
+  public int size() {
+    return SIZE;
   }
 
+  /**
+   * @param index Index of feature, from 0 to size()-1.
+   * @return Id (hash) of the feature at the index.
+   */
+  public long idAt(int index) {
+    return ids[index];
+  }
 }
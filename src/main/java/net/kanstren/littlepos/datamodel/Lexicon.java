@@ -0,0 +1,14 @@
+package net.kanstren.littlepos.datamodel;
+
+/**
+ * Maps words to tags for words that clearly have a specific tag, so no prediction is needed for them.
+ *
+ * @author Teemu Kanstren
+ */
+public interface Lexicon {
+  /**
+   * @param word The (normalized) word to look up.
+   * @return The tag for the word, or null if the word does not always have the same tag.
+   */
+  String tagFor(String word);
+}
@@ -0,0 +1,118 @@
+package net.kanstren.littlepos.datamodel;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values, using primitive arrays with open addressing instead of boxed keys and values.
+ * Used to find the weight row for a feature id without creating objects on lookup.
+ * Values must be non-negative, since -1 is used to signal a missing key.
+ *
+ * @author Teemu Kanstren
+ */
+public class LongIntMap {
+  /** Slots for keys. A slot is free if its value is -1. */
+  private long[] keys;
+  /** Slots for values, -1 for free slot. */
+  private int[] values;
+  /** Number of keys in the map. */
+  private int size = 0;
+
+  public LongIntMap() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize Number of keys to reserve space for.
+   */
+  public LongIntMap(int expectedSize) {
+    int capacity = 16;
+    while (capacity * 3 < expectedSize * 4) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  /**
+   * @param other Map to copy.
+   */
+  public LongIntMap(LongIntMap other) {
+    keys = other.keys.clone();
+    values = other.values.clone();
+    size = other.size;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, -1);
+  }
+
+  /**
+   * @param key To look up.
+   * @return Value for the key, or -1 if the key is not in the map.
+   */
+  public int get(long key) {
+    int mask = keys.length - 1;
+    int slot = mix(key) & mask;
+    while (values[slot] >= 0) {
+      if (keys[slot] == key) return values[slot];
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * @param key To add or replace the value for.
+   * @param value Value for the key, must be non-negative.
+   */
+  public void put(long key, int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Value must be non-negative, was "+value);
+    }
+    int mask = keys.length - 1;
+    int slot = mix(key) & mask;
+    while (values[slot] >= 0) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    size++;
+    //keep load factor at max 0.75 so probe sequences stay short
+    if (size * 4 > keys.length * 3) {
+      grow();
+    }
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length * 2);
+    size = 0;
+    for (int i = 0 ; i < oldKeys.length ; i++) {
+      if (oldValues[i] >= 0) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  /**
+   * Spread the key bits, since slots are picked from the low bits only.
+   */
+  private static int mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /**
+   * @return Number of keys in the map.
+   */
+  public int size() {
+    return size;
+  }
+}
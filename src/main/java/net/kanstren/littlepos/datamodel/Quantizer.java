@@ -0,0 +1,128 @@
+package net.kanstren.littlepos.datamodel;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Linear quantization of weight rows into 8 or 16 bit integers, with one scale per row.
+ * A weight is stored as round(weight / scale), and read back as the stored value * scale.
+ * The scale is picked so the largest weight (by magnitude) in the row maps to the largest integer value.
+ *
+ * @author Teemu Kanstren
+ */
+public class Quantizer {
+  /**
+   * @param bits Bits per quantized weight.
+   * @throws IllegalArgumentException If the bits are not 8 or 16.
+   */
+  public static void checkBits(int bits) {
+    if (bits != 8 && bits != 16) {
+      throw new IllegalArgumentException("Quantization bits should be 8 or 16, was "+bits);
+    }
+  }
+
+  /**
+   * @param bits Bits per quantized weight.
+   * @return The largest quantized value.
+   */
+  private static int maxValue(int bits) {
+    return (1 << (bits - 1)) - 1;
+  }
+
+  /**
+   * @param weights The weights.
+   * @param from Index of first weight in the row.
+   * @param count Number of weights in the row.
+   * @param bits Bits per quantized weight.
+   * @return Scale for the row, 0 if all weights in the row are 0.
+   */
+  public static float scale(double[] weights, int from, int count, int bits) {
+    double maxAbs = 0;
+    for (int i = from ; i < from + count ; i++) {
+      maxAbs = Math.max(maxAbs, Math.abs(weights[i]));
+    }
+    return (float) (maxAbs / maxValue(bits));
+  }
+
+  /**
+   * @param weight The weight to quantize.
+   * @param scale Scale of the row.
+   * @param bits Bits per quantized weight.
+   * @return The quantized value.
+   */
+  private static int quantize(double weight, float scale, int bits) {
+    if (scale == 0) return 0;
+    int max = maxValue(bits);
+    long value = Math.round(weight / scale);
+    return (int) Math.max(-max, Math.min(max, value));
+  }
+
+  /**
+   * @param weights The weights.
+   * @param from Index of first weight in the row.
+   * @param count Number of weights in the row.
+   * @param bits Bits per quantized weight.
+   * @param scale Scale of the row, from scale().
+   * @return The quantized weights of the row, one or two bytes each (big-endian).
+   */
+  public static ByteString encode(double[] weights, int from, int count, int bits, float scale) {
+    byte[] bytes = new byte[count * (bits / 8)];
+    encode(weights, from, count, bits, scale, bytes, 0);
+    return ByteString.copyFrom(bytes);
+  }
+
+  /**
+   * Quantize the weights of a row into an array, in the same format as encode() gives.
+   *
+   * @param weights The weights.
+   * @param from Index of first weight in the row.
+   * @param count Number of weights in the row.
+   * @param bits Bits per quantized weight.
+   * @param scale Scale of the row, from scale().
+   * @param into Array to write the quantized weights to.
+   * @param offset Index in the array for the first byte.
+   */
+  public static void encode(double[] weights, int from, int count, int bits, float scale, byte[] into, int offset) {
+    int bytesPerWeight = bits / 8;
+    for (int i = 0 ; i < count ; i++) {
+      int value = quantize(weights[from + i], scale, bits);
+      if (bytesPerWeight == 1) {
+        into[offset + i] = (byte) value;
+      } else {
+        into[offset + i * 2] = (byte) (value >> 8);
+        into[offset + i * 2 + 1] = (byte) value;
+      }
+    }
+  }
+
+  /**
+   * @param bytes Quantized weights from encode().
+   * @param scale Scale of the row.
+   * @param bits Bits per quantized weight.
+   * @param into Array to write the weights to.
+   * @param from Index in the array for the first weight.
+   */
+  public static void decode(ByteString bytes, float scale, int bits, double[] into, int from) {
+    int bytesPerWeight = bits / 8;
+    int count = bytes.size() / bytesPerWeight;
+    for (int i = 0 ; i < count ; i++) {
+      int value;
+      if (bytesPerWeight == 1) {
+        value = bytes.byteAt(i);
+      } else {
+        value = (bytes.byteAt(i * 2) << 8) | (bytes.byteAt(i * 2 + 1) & 0xff);
+      }
+      into[from + i] = value * (double) scale;
+    }
+  }
+
+  /**
+   * @param bytes Quantized weights in the format from encode().
+   * @param index Index of the weight.
+   * @param bits Bits per quantized weight.
+   * @return The quantized value of the weight, to multiply with the row scale.
+   */
+  public static int valueAt(byte[] bytes, int index, int bits) {
+    if (bits == 8) return bytes[index];
+    return (bytes[index * 2] << 8) | (bytes[index * 2 + 1] & 0xff);
+  }
+}
@@ -3,25 +3,33 @@ package net.kanstren.littlepos.datamodel;
 
 import net.kanstren.littlepos.generated.protobuf.Perceptron;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Track statistics for how often a word or a tag has been seen generally, and how often a tag has been seen for a word.
+ * Words and tags are given int ids in the order they are first seen, and the counts are kept in int arrays by those ids.
+ * For each word, only the tags seen with it are stored, as pairs of tag id and count.
+ * Not thread-safe. To count in parallel, count separate parts into their own statistics and merge() them,
+ * as updateWith(sentences, shards) does.
  *
  * @author Teemu Kanstren
  */
 public class Statistics {
-  /** Set of unique tags. */
-  private Collection<String> tags = new HashSet<>();
-  /** Set of unique words. */
-  private Collection<String> words = new HashSet<>();
-  /** Key = word, value = number of times a tag has been seen for the word. */
-  private final Map<String, TagCounter> statistics = new HashMap<>();
+  /** Ids for the unique tags. */
+  private final StringIndex tags = new StringIndex();
+  /** Ids for the unique words. */
+  private final StringIndex words = new StringIndex();
+  /** Tags seen for each word id, as pairs of tag id and count. Null if nothing counted for the word yet. */
+  private int[][] tagCounts = new int[16][];
+  /** Total count of tags seen for each word id. */
+  private int[] totals = new int[16];
 
   public void updateWith(List<TagSentence> sentences) {
     for (TagSentence sentence : sentences) {
@@ -29,45 +37,179 @@ public class Statistics {
     }
   }
 
+  /**
+   * Count the given sentences in parallel, by splitting them into shards that are each counted separately
+   * and then merged into these statistics. The result is the same as counting them in one go.
+   *
+   * @param sentences To count.
+   * @param shards Number of parts to split the sentences into. 1 to count them on the calling thread.
+   */
+  public void updateWith(List<TagSentence> sentences, int shards) {
+    if (shards <= 1 || sentences.size() < shards) {
+      updateWith(sentences);
+      return;
+    }
+    List<Statistics> parts = IntStream.range(0, shards).parallel()
+        .mapToObj(shard -> {
+          Statistics part = new Statistics();
+          part.updateWith(sentences.subList(shard * sentences.size() / shards, (shard + 1) * sentences.size() / shards));
+          return part;
+        })
+        .collect(Collectors.toList());
+    //merging in shard order gives the same ids as counting sequentially
+    for (Statistics part : parts) {
+      merge(part);
+    }
+  }
+
   public void updateWith(TagSentence sentence) {
     for (WordTag wordTag : sentence.getWordTags()) {
       updateWith(wordTag);
     }
   }
 
+  /**
+   * Add all the counts from the given statistics to these.
+   *
+   * @param other The statistics to add. Not changed.
+   */
+  public void merge(Statistics other) {
+    int[] tagIds = new int[other.tags.size()];
+    for (int tag = 0 ; tag < tagIds.length ; tag++) {
+      tagIds[tag] = tags.add(other.tags.get(tag));
+    }
+    for (int otherWord = 0 ; otherWord < other.words.size() ; otherWord++) {
+      int word = wordId(other.words.get(otherWord));
+      int[] counts = other.tagCounts[otherWord];
+      if (counts == null) continue;
+      for (int i = 0 ; i < counts.length ; i += 2) {
+        add(word, tagIds[counts[i]], counts[i + 1]);
+      }
+    }
+  }
+
+  /**
+   * @return All unique tags, in the order first seen.
+   */
   public Collection<String> tags() {
-    return tags;
+    return tags.asList();
   }
 
+  /**
+   * @return All unique words, in the order first seen.
+   */
   public Collection<String> words() {
-    return words;
+    return words.asList();
   }
 
+  /**
+   * @return Number of unique words.
+   */
+  public int wordCount() {
+    return words.size();
+  }
+
+  /**
+   * @param wordId Id of the word, from 0 to wordCount()-1.
+   * @return The word with the given id.
+   */
+  public String word(int wordId) {
+    return words.get(wordId);
+  }
+
+  /**
+   * @param wordId Id of the word, from 0 to wordCount()-1.
+   * @return Number of times the word has been seen, with any tag.
+   */
+  public int totalCount(int wordId) {
+    return totals[wordId];
+  }
+
+  /**
+   * @param wordId Id of the word, from 0 to wordCount()-1.
+   * @return The tag seen most often with the word, null if none seen.
+   */
+  public TagCount max(int wordId) {
+    int[] counts = tagCounts[wordId];
+    if (counts == null) return null;
+    int max = 0;
+    for (int i = 2 ; i < counts.length ; i += 2) {
+      if (counts[i + 1] > counts[max + 1]) max = i;
+    }
+    return new TagCount(tags.get(counts[max]), counts[max + 1]);
+  }
+
+  /**
+   * @param word The word to look up.
+   * @return Counts of tags seen for the word, null if the word has not been seen.
+   */
   public TagCounter tagCountsFor(String word) {
-    return statistics.get(word);
+    int wordId = words.idOf(word);
+    if (wordId < 0) return null;
+    Map<String, Integer> counts = new HashMap<>();
+    int[] pairs = tagCounts[wordId];
+    if (pairs != null) {
+      for (int i = 0 ; i < pairs.length ; i += 2) {
+        counts.put(tags.get(pairs[i]), pairs[i + 1]);
+      }
+    }
+    return new TagCounter(word, counts, totals[wordId], max(wordId));
   }
 
   public void updateWith(WordTag wordTag) {
-    TagCounter tagCounter = statistics.computeIfAbsent(wordTag.word, TagCounter::new);
-    tagCounter.increment(wordTag.tag);
+    updateWith(wordTag.word, wordTag.tag);
   }
 
-  public class TagCounter {
-    public final String word;
-    private final Map<String, Integer> tagCounts = new HashMap<>();
-    public int totalTagCount = 0;
+  public void updateWith(String word, String tag) {
+    add(wordId(word), tags.add(tag), 1);
+  }
 
-    public TagCounter(String word) {
-      this.word = word;
-      words.add(word);
+  /**
+   * @param word The word to get the id for.
+   * @return Id of the word, added as a new word if not seen before.
+   */
+  private int wordId(String word) {
+    int wordId = words.add(word);
+    if (wordId == totals.length) {
+      totals = Arrays.copyOf(totals, wordId * 2);
+      tagCounts = Arrays.copyOf(tagCounts, wordId * 2);
     }
+    return wordId;
+  }
 
-    public void increment(String tag) {
-      int tagCount = tagCounts.getOrDefault(tag, 0);
-      tagCount++;
-      tagCounts.put(tag, tagCount);
-      tags.add(tag);
-      totalTagCount++;
+  private void add(int word, int tag, int count) {
+    totals[word] += count;
+    int[] counts = tagCounts[word];
+    if (counts == null) {
+      tagCounts[word] = new int[] {tag, count};
+      return;
+    }
+    for (int i = 0 ; i < counts.length ; i += 2) {
+      if (counts[i] == tag) {
+        counts[i + 1] += count;
+        return;
+      }
+    }
+    counts = Arrays.copyOf(counts, counts.length + 2);
+    counts[counts.length - 2] = tag;
+    counts[counts.length - 1] = count;
+    tagCounts[word] = counts;
+  }
+
+  /**
+   * Counts of tags seen for a single word. A snapshot, not updated when the statistics change.
+   */
+  public static class TagCounter {
+    public final String word;
+    private final Map<String, Integer> tagCounts;
+    public final int totalTagCount;
+    private final TagCount max;
+
+    private TagCounter(String word, Map<String, Integer> tagCounts, int totalTagCount, TagCount max) {
+      this.word = word;
+      this.tagCounts = tagCounts;
+      this.totalTagCount = totalTagCount;
+      this.max = max;
     }
 
     public Map<String, Integer> getTagCounts() {
@@ -75,12 +217,11 @@ public class Statistics {
     }
 
     public TagCount max() {
-      Map.Entry<String, Integer> max = Collections.max(tagCounts.entrySet(), Map.Entry.comparingByValue());
-      return new TagCount(max.getKey(), max.getValue());
+      return max;
     }
   }
 
-  public class TagCount {
+  public static class TagCount {
     public final String tag;
     public final int count;
 
@@ -91,34 +232,78 @@ public class Statistics {
   }
 
   public void buildPB(Perceptron.PerceptronModel.Builder pb) {
-    pb.addAllUniqueTag(tags);
-    pb.addAllUniqueWord(words);
-    for (String word : statistics.keySet()) {
-      TagCounter tagCounter = statistics.get(word);
-      Perceptron.WordTagFrequency.Builder wtfBuilder = Perceptron.WordTagFrequency.newBuilder();
-      wtfBuilder.setWord(word);
-      for (String tag : tagCounter.tagCounts.keySet()) {
-        Perceptron.TagCount tagCount = Perceptron.TagCount.newBuilder()
-            .setTag(tag)
-            .setCount(tagCounter.tagCounts.get(tag))
-            .build();
-        wtfBuilder.addTagCount(tagCount);
+    pb.addAllUniqueTag(tags());
+    pb.addAllUniqueWord(words());
+    for (int word = 0 ; word < words.size() ; word++) {
+      if (tagCounts[word] != null) pb.addFreq(frequencyPB(word));
+    }
+  }
+
+  /**
+   * Give the statistics as a stream of chunks, so they never need to be in a single protobuf message.
+   *
+   * @param chunkSize Max number of words per chunk.
+   * @param chunks Receives each chunk once it is built.
+   */
+  public void buildChunks(int chunkSize, Consumer<Perceptron.ModelChunk> chunks) {
+    chunks.accept(Perceptron.ModelChunk.newBuilder().addAllUniqueTag(tags()).build());
+    Perceptron.ModelChunk.Builder chunk = Perceptron.ModelChunk.newBuilder();
+    for (String word : words()) {
+      chunk.addUniqueWord(word);
+      if (chunk.getUniqueWordCount() >= chunkSize) {
+        chunks.accept(chunk.build());
+        chunk = Perceptron.ModelChunk.newBuilder();
+      }
+    }
+    for (int word = 0 ; word < words.size() ; word++) {
+      if (tagCounts[word] == null) continue;
+      chunk.addFreq(frequencyPB(word));
+      if (chunk.getUniqueWordCount() + chunk.getFreqCount() >= chunkSize) {
+        chunks.accept(chunk.build());
+        chunk = Perceptron.ModelChunk.newBuilder();
       }
-      pb.addFreq(wtfBuilder.build());
+    }
+    if (chunk.getUniqueWordCount() + chunk.getFreqCount() > 0) {
+      chunks.accept(chunk.build());
     }
   }
 
+  private Perceptron.WordTagFrequency frequencyPB(int word) {
+    Perceptron.WordTagFrequency.Builder wtfBuilder = Perceptron.WordTagFrequency.newBuilder();
+    wtfBuilder.setWord(words.get(word));
+    int[] counts = tagCounts[word];
+    for (int i = 0 ; i < counts.length ; i += 2) {
+      Perceptron.TagCount tagCount = Perceptron.TagCount.newBuilder()
+          .setTag(tags.get(counts[i]))
+          .setCount(counts[i + 1])
+          .build();
+      wtfBuilder.addTagCount(tagCount);
+    }
+    return wtfBuilder.build();
+  }
+
+  /**
+   * Add the statistics in a chunk of a stored chunk stream.
+   *
+   * @param chunk The chunk to read.
+   */
+  public void initFromPB(Perceptron.ModelChunk chunk) {
+    chunk.getUniqueTagList().forEach(tags::add);
+    chunk.getUniqueWordList().forEach(this::wordId);
+    initFrequencies(chunk.getFreqList());
+  }
+
   public void initFromPB(Perceptron.PerceptronModel model) {
-    tags.addAll(model.getUniqueTagList());
-    words.addAll(model.getUniqueWordList());
-    List<Perceptron.WordTagFrequency> freqList = model.getFreqList();
+    model.getUniqueTagList().forEach(tags::add);
+    model.getUniqueWordList().forEach(this::wordId);
+    initFrequencies(model.getFreqList());
+  }
+
+  private void initFrequencies(List<Perceptron.WordTagFrequency> freqList) {
     for (Perceptron.WordTagFrequency wtf : freqList) {
-      String word = wtf.getWord();
-      TagCounter tagCounter = statistics.computeIfAbsent(word, TagCounter::new);
-      Map<String, Integer> tagCounts = tagCounter.getTagCounts();
-      List<Perceptron.TagCount> tagCountList = wtf.getTagCountList();
-      for (Perceptron.TagCount tagCount : tagCountList) {
-        tagCounts.put(tagCount.getTag(), tagCount.getCount());
+      int word = wordId(wtf.getWord());
+      for (Perceptron.TagCount tagCount : wtf.getTagCountList()) {
+        add(word, tags.add(tagCount.getTag()), tagCount.getCount());
       }
     }
   }
@@ -0,0 +1,113 @@
+package net.kanstren.littlepos.datamodel;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gives each added string an int id, in the order they are added, starting from 0.
+ * Uses open addressing over plain arrays, so there are no entry objects or boxed ids per string.
+ *
+ * @author Teemu Kanstren
+ */
+class StringIndex {
+  /** Hash slots, holding id + 1 of the string in the slot, 0 for a free slot. */
+  private int[] slots = new int[16];
+  /** Strings by id. */
+  private String[] strings = new String[16];
+  /** Number of strings in the index. */
+  private int size = 0;
+
+  /**
+   * @param s The string to look up.
+   * @return Id of the string, or -1 if it is not in the index.
+   */
+  int idOf(String s) {
+    int mask = slots.length - 1;
+    int slot = mix(s.hashCode()) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (strings[id].equals(s)) return id;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * @param s The string to add, if not already there.
+   * @return Id of the string.
+   */
+  int add(String s) {
+    int mask = slots.length - 1;
+    int slot = mix(s.hashCode()) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (strings[id].equals(s)) return id;
+      slot = (slot + 1) & mask;
+    }
+    int id = size++;
+    if (id == strings.length) {
+      strings = Arrays.copyOf(strings, id * 2);
+    }
+    strings[id] = s;
+    slots[slot] = id + 1;
+    //keep load factor at max 0.5, the slots are only ints so this is cheap
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return id;
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    int mask = capacity - 1;
+    for (int id = 0 ; id < size ; id++) {
+      int slot = mix(strings[id].hashCode()) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+  }
+
+  /**
+   * Spread the hash bits, since slots are picked from the low bits only.
+   */
+  private static int mix(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @param id Id of the string.
+   * @return The string with the given id.
+   */
+  String get(int id) {
+    return strings[id];
+  }
+
+  /**
+   * @return Number of strings in the index.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return Read-only view of the strings, in id order.
+   */
+  List<String> asList() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index "+index+", size "+size);
+        return strings[index];
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+}
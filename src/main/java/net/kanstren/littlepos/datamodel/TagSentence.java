@@ -28,6 +28,15 @@ public class TagSentence {
     return array;
   }
 
+  public String[] tagArray() {
+    String[] array = new String[words.size()];
+    int i = 0;
+    for (WordTag word : words) {
+      array[i++] = word.tag;
+    }
+    return array;
+  }
+
   @Override
   public String toString() {
     return "TagSentence{" +
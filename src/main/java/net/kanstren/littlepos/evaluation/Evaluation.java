@@ -0,0 +1,269 @@
+package net.kanstren.littlepos.evaluation;
+
+import net.kanstren.littlepos.TagPredictor;
+import net.kanstren.littlepos.datamodel.Lexicon;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import net.kanstren.littlepos.metrics.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Results of tagging reference sentences and comparing the tags to the correct ones.
+ * Counts the correct words overall and separately for words tagged from the single tag lexicon and by the model,
+ * the tag pairs (correct, predicted) for a confusion matrix and per-tag precision and recall,
+ * and the time taken to tag each sentence.
+ * Not thread-safe: use one per thread and merge() them together at the end, as Evaluator does.
+ *
+ * @author Teemu Kanstren.
+ */
+public class Evaluation {
+  private long sentences = 0;
+  private long words = 0;
+  private long correct = 0;
+  /** Words tagged from the single tag lexicon. */
+  private long singleTagWords = 0;
+  private long singleTagCorrect = 0;
+  /** Words tagged UNKNOWN, since none of their features had a weight. */
+  private long unknownWords = 0;
+  /** Counts of predicted tags for each correct tag. The count is in a one-element array, to update it in place. */
+  private final Map<String, Map<String, long[]>> confusion = new HashMap<>();
+  private final LatencyHistogram latency = new LatencyHistogram();
+  /** Wall clock time of the evaluation, for the words per second. */
+  private long elapsedNanos = 0;
+
+  /**
+   * Add a tagged sentence to the results.
+   *
+   * @param reference The sentence with the correct tags.
+   * @param predicted The sentence as tagged, with the normalized words.
+   * @param singleTags The single tag lexicon of the tagger, to tell which words were tagged from it.
+   * @param nanos Time taken to tag the sentence.
+   */
+  public void add(TagSentence reference, TagSentence predicted, Lexicon singleTags, long nanos) {
+    List<WordTag> references = reference.getWordTags();
+    List<WordTag> guesses = predicted.getWordTags();
+    if (references.size() != guesses.size()) {
+      throw new IllegalArgumentException("Tagged "+guesses.size()+" words for a sentence of "+references.size()+" words.");
+    }
+    sentences++;
+    latency.record(nanos);
+    for (int i = 0 ; i < references.size() ; i++) {
+      String correctTag = references.get(i).tag;
+      WordTag guess = guesses.get(i);
+      boolean match = guess.tag.equals(correctTag);
+      words++;
+      if (match) correct++;
+      if (singleTags.tagFor(guess.word) != null) {
+        singleTagWords++;
+        if (match) singleTagCorrect++;
+      } else if (guess.tag.equals(TagPredictor.UNKNOWN)) {
+        unknownWords++;
+      }
+      confusion.computeIfAbsent(correctTag, tag -> new HashMap<>()).computeIfAbsent(guess.tag, tag -> new long[1])[0]++;
+    }
+  }
+
+  /**
+   * Add the results of another evaluation to this one, such as from another thread.
+   *
+   * @param other The results to add.
+   */
+  public void merge(Evaluation other) {
+    sentences += other.sentences;
+    words += other.words;
+    correct += other.correct;
+    singleTagWords += other.singleTagWords;
+    singleTagCorrect += other.singleTagCorrect;
+    unknownWords += other.unknownWords;
+    for (Map.Entry<String, Map<String, long[]>> row : other.confusion.entrySet()) {
+      Map<String, long[]> counts = confusion.computeIfAbsent(row.getKey(), tag -> new HashMap<>());
+      for (Map.Entry<String, long[]> cell : row.getValue().entrySet()) {
+        counts.computeIfAbsent(cell.getKey(), tag -> new long[1])[0] += cell.getValue()[0];
+      }
+    }
+    latency.merge(other.latency);
+    elapsedNanos += other.elapsedNanos;
+  }
+
+  /**
+   * @param nanos Wall clock time the evaluation took.
+   */
+  void setElapsedNanos(long nanos) {
+    this.elapsedNanos = nanos;
+  }
+
+  public long sentences() {
+    return sentences;
+  }
+
+  public long words() {
+    return words;
+  }
+
+  public long correct() {
+    return correct;
+  }
+
+  /**
+   * @return Share of words tagged correctly.
+   */
+  public double accuracy() {
+    return share(correct, words);
+  }
+
+  /**
+   * @return Number of words tagged from the single tag lexicon.
+   */
+  public long singleTagWords() {
+    return singleTagWords;
+  }
+
+  /**
+   * @return Share of the words tagged from the single tag lexicon that got the correct tag.
+   */
+  public double singleTagAccuracy() {
+    return share(singleTagCorrect, singleTagWords);
+  }
+
+  /**
+   * @return Number of words tagged by model prediction.
+   */
+  public long predictedWords() {
+    return words - singleTagWords;
+  }
+
+  /**
+   * @return Share of the words tagged by model prediction that got the correct tag.
+   */
+  public double predictedAccuracy() {
+    return share(correct - singleTagCorrect, words - singleTagWords);
+  }
+
+  /**
+   * @return Number of predicted words tagged UNKNOWN since none of their features had a weight.
+   */
+  public long unknownWords() {
+    return unknownWords;
+  }
+
+  /**
+   * @return Time taken to tag each sentence.
+   */
+  public LatencyHistogram latency() {
+    return latency;
+  }
+
+  /**
+   * @return Words tagged per second of wall clock time, over all threads. 0 if the time is not known.
+   */
+  public double wordsPerSecond() {
+    return elapsedNanos == 0 ? 0 : words * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * @return All tags seen as correct or predicted tags, sorted.
+   */
+  public Set<String> tags() {
+    Set<String> tags = new TreeSet<>(confusion.keySet());
+    for (Map<String, long[]> row : confusion.values()) {
+      tags.addAll(row.keySet());
+    }
+    return tags;
+  }
+
+  /**
+   * @param correctTag The correct tag.
+   * @param predictedTag The predicted tag.
+   * @return Number of words with the correct tag that were given the predicted tag.
+   */
+  public long count(String correctTag, String predictedTag) {
+    Map<String, long[]> row = confusion.get(correctTag);
+    if (row == null) return 0;
+    long[] count = row.get(predictedTag);
+    return count == null ? 0 : count[0];
+  }
+
+  /**
+   * @param tag The tag to check.
+   * @return Share of the words given the tag that had it as the correct tag.
+   */
+  public double precision(String tag) {
+    long predicted = 0;
+    for (Map<String, long[]> row : confusion.values()) {
+      long[] count = row.get(tag);
+      if (count != null) predicted += count[0];
+    }
+    return share(count(tag, tag), predicted);
+  }
+
+  /**
+   * @param tag The tag to check.
+   * @return Share of the words with the tag as the correct tag that were given the tag.
+   */
+  public double recall(String tag) {
+    long actual = 0;
+    Map<String, long[]> row = confusion.get(tag);
+    if (row != null) {
+      for (long[] count : row.values()) {
+        actual += count[0];
+      }
+    }
+    return share(count(tag, tag), actual);
+  }
+
+  /**
+   * @param tag The tag to check.
+   * @return Harmonic mean of the precision and recall for the tag.
+   */
+  public double f1(String tag) {
+    double precision = precision(tag);
+    double recall = recall(tag);
+    return precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+  }
+
+  private static double share(long part, long total) {
+    return total == 0 ? 0 : (double) part / total;
+  }
+
+  /**
+   * @return Multi-line report of all the results: totals, latency, per-tag precision and recall, and the confusion matrix.
+   */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("sentences=%d words=%d correct=%d accuracy=%.4f%n", sentences, words, correct, accuracy()));
+    report.append(String.format("single tag words=%d accuracy=%.4f, predicted words=%d accuracy=%.4f, unknown words=%d%n",
+        singleTagWords, singleTagAccuracy(), predictedWords(), predictedAccuracy(), unknownWords));
+    report.append(String.format("words per second=%.0f, sentence latency: %s%n", wordsPerSecond(), latency));
+    report.append(String.format("%-10s %9s %9s %9s%n", "tag", "precision", "recall", "f1"));
+    Set<String> tags = tags();
+    for (String tag : tags) {
+      report.append(String.format("%-10s %9.4f %9.4f %9.4f%n", tag, precision(tag), recall(tag), f1(tag)));
+    }
+    report.append("confusion matrix, rows are correct tags and columns predicted tags:").append(System.lineSeparator());
+    report.append(String.format("%-10s", ""));
+    for (String tag : tags) {
+      report.append(String.format(" %8.8s", tag));
+    }
+    report.append(System.lineSeparator());
+    for (String correctTag : tags) {
+      report.append(String.format("%-10.10s", correctTag));
+      for (String predictedTag : tags) {
+        report.append(String.format(" %8d", count(correctTag, predictedTag)));
+      }
+      report.append(System.lineSeparator());
+    }
+    return report.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "Evaluation{sentences="+sentences+", words="+words+", accuracy="+String.format("%.4f", accuracy())
+        +", singleTagAccuracy="+String.format("%.4f", singleTagAccuracy())+", predictedAccuracy="+String.format("%.4f", predictedAccuracy())
+        +", wordsPerSecond="+(long) wordsPerSecond()+", latency="+latency+"}";
+  }
+}
@@ -0,0 +1,32 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.DocumentTagger;
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.persist.ModelFiles;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Paths;
+
+/**
+ * Tags a text file with one sentence per line, writing each word with its tag on its own line.
+ * Takes the model file name, the text file name and the output file name as parameters.
+ * Model files ending with ".lpm" are opened as memory mapped models, ".pbs" as streamed protobuf models, others as protobuf models.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DocumentTaggerExample {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String modelFilename = args[0];
+    String inputFilename = args[1];
+    String outputFilename = args[2];
+    FrozenTagger tagger = ModelFiles.open(modelFilename);
+    DocumentTagger documentTagger = tagger.documentTagger();
+    long start = System.currentTimeMillis();
+    documentTagger.tag(Paths.get(inputFilename), Paths.get(outputFilename));
+    long time = Math.max(1, System.currentTimeMillis() - start);
+    log.info("Tagging took "+time+"ms, "+(documentTagger.wordCount() * 1000 / time)+" words per second.");
+  }
+}
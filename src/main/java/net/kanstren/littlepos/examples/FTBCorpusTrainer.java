@@ -0,0 +1,50 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.corpus.BinaryCorpus;
+import net.kanstren.littlepos.persist.PBWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Trains the tagger from transformed FinnTreeBank data through the binary corpus format.
+ * On the first run the text file is converted into a binary corpus file next to it.
+ * Later runs train straight from the binary file, without parsing the text or loading the sentences into memory.
+ * A checkpoint is written after each iteration, and a run that finds a checkpoint from an interrupted run resumes from it.
+ *
+ * @author Teemu Kanstren.
+ */
+public class FTBCorpusTrainer {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String size = args[0];
+    //optional number of bits for hashing features into a fixed size table. 0 (default) = store features by name
+    int hashBits = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+    Path corpusFile = Paths.get("transformed_train_"+size+".lpc");
+    if (!Files.exists(corpusFile)) {
+      log.info("Converting text corpus to binary corpus "+corpusFile+".");
+      BinaryCorpus.convert(Paths.get("transformed_train_"+size+".conllx"), corpusFile);
+    }
+    log.info("Opening binary corpus "+corpusFile+".");
+    BinaryCorpus corpus = BinaryCorpus.open(corpusFile);
+    Path checkpointFile = Paths.get("tagger_model_"+size+".lpcp");
+    PerceptronTagger tagger;
+    if (Files.exists(checkpointFile)) {
+      tagger = PerceptronTagger.resumeFromCheckpoint(checkpointFile, corpus);
+    } else {
+      tagger = new PerceptronTagger(hashBits);
+      tagger.setCheckpoints(checkpointFile, 1);
+      tagger.train(corpus);
+    }
+    String filename = "tagger_model_"+size+".pb";
+    log.info("Finished training. Saving model to file "+filename+".");
+    PBWriter writer = new PBWriter(tagger);
+    writer.writeToFile(filename);
+    Files.deleteIfExists(checkpointFile);
+  }
+}
@@ -15,6 +15,7 @@ import java.util.List;
 /**
  * Loader for transformed FinnTreeBank data.
  * Loads the data from a file and trains the tagger with it.
+ * If a dev file is given, training stops once the accuracy on the dev sentences stops improving.
  *
  * @author Teemu Kanstren.
  */
@@ -26,20 +27,29 @@ public class FTBLoader {
   private static int loadedSentences = 0;
 
   public static void main(String[] args) throws Exception {
-    PerceptronTagger tagger = new PerceptronTagger();
     String size = args[0];
+    //optional number of bits for hashing features into a fixed size table. 0 (default) = store features by name
+    int hashBits = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+    //optional number of threads to train with. 1 (default) = single model on a single thread
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    //optional file of held-out sentences to stop training on when their accuracy stops improving
+    String devFilename = args.length > 3 ? args[3] : null;
+    PerceptronTagger tagger = new PerceptronTagger(hashBits);
     log.info("Starting Finnish Treebank Loader with "+size+" size.");
-    try (BufferedReader br = new BufferedReader(new FileReader("transformed_train_"+size+".conllx"))) {
-      String line;
-      while ((line = br.readLine()) != null) {
-        process(line);
-      }
-    }
+    load("transformed_train_"+size+".conllx");
 //    try (Stream<String> stream = Files.lines(Paths.get("transformed_1M.conllx"))) {
 //      stream.forEach(FTBLoader::process);
 //    }
     log.info("Finished loading. Starting to train.");
-    tagger.train(sentences);
+    if (devFilename != null) {
+      List<TagSentence> train = sentences;
+      sentences = new ArrayList<>();
+      sentence = null;
+      load(devFilename);
+      tagger.train(train, sentences, threads, PerceptronTagger.MAX_ITERATIONS, PerceptronTagger.DEFAULT_PATIENCE);
+    } else {
+      tagger.train(sentences, threads);
+    }
     String filename = "tagger_model_"+size+".pb";
     log.info("Finished training. Saving model to file "+filename+".");
     PBWriter writer = new PBWriter(tagger);
@@ -49,6 +59,15 @@ public class FTBLoader {
     log.info("test sentence result:"+tagSentence);
   }
 
+  private static void load(String filename) throws Exception {
+    try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        process(line);
+      }
+    }
+  }
+
   private static void process(String line) {
     String[] split = line.split(" ");
     if (sentence == null || split.length < 2) {
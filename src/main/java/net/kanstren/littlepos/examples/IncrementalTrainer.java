@@ -0,0 +1,56 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import net.kanstren.littlepos.persist.PBReader;
+import net.kanstren.littlepos.persist.PBWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Continues training a stored model with new sentences, instead of training again on the full corpus.
+ * Takes the model file name, the file with the new sentences (same format as for FTBLoader), the file name for the updated model,
+ * and optionally the number of iterations over the new sentences.
+ * The model needs to have been stored with its training state (not inference only, pruned or quantized).
+ *
+ * @author Teemu Kanstren.
+ */
+public class IncrementalTrainer {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String modelFilename = args[0];
+    String sentenceFilename = args[1];
+    String outputFilename = args[2];
+    int iterations = args.length > 3 ? Integer.parseInt(args[3]) : PerceptronTagger.DEFAULT_ITERATIONS;
+    log.info("Loading model '"+modelFilename+"'.");
+    PerceptronTagger tagger = PBReader.readFrom(modelFilename);
+    List<TagSentence> sentences = new ArrayList<>();
+    TagSentence sentence = new TagSentence();
+    try (BufferedReader br = Files.newBufferedReader(Paths.get(sentenceFilename), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] split = line.split(" ");
+        if (split.length < 2) {
+          if (!sentence.getWordTags().isEmpty()) sentences.add(sentence);
+          sentence = new TagSentence();
+          continue;
+        }
+        sentence.add(new WordTag(split[0], split[1]));
+      }
+    }
+    if (!sentence.getWordTags().isEmpty()) sentences.add(sentence);
+    log.info("Continuing training with "+sentences.size()+" new sentences.");
+    tagger.continueTraining(sentences, 1, iterations);
+    log.info("Saving updated model to file "+outputFilename+".");
+    new PBWriter(tagger).writeToFile(outputFilename);
+  }
+}
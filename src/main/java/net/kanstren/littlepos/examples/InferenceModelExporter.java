@@ -0,0 +1,27 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.persist.PBReader;
+import net.kanstren.littlepos.persist.PBWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a protobuf model again with only the data needed for tagging, leaving out the training state.
+ * Takes the full model file name and the inference only model file name as parameters.
+ *
+ * @author Teemu Kanstren.
+ */
+public class InferenceModelExporter {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String fullFilename = args[0];
+    String inferenceFilename = args[1];
+    log.info("Exporting model '"+fullFilename+"' for inference only to '"+inferenceFilename+"'.");
+    PerceptronTagger tagger = PBReader.readFrom(fullFilename);
+    PBWriter writer = new PBWriter(tagger, true);
+    writer.writeToFile(inferenceFilename);
+    log.info("Export done.");
+  }
+}
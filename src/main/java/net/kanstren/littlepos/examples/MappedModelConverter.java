@@ -0,0 +1,23 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.persist.MappedModelWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Converts a protobuf model file into the memory mapped model format for fast startup in tagging.
+ * Takes the protobuf model file name and the mapped model file name as parameters.
+ *
+ * @author Teemu Kanstren.
+ */
+public class MappedModelConverter {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String pbFilename = args[0];
+    String mappedFilename = args[1];
+    log.info("Converting protobuf model '"+pbFilename+"' to mapped model '"+mappedFilename+"'.");
+    MappedModelWriter.convert(pbFilename, mappedFilename);
+    log.info("Conversion done.");
+  }
+}
@@ -0,0 +1,54 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.evaluation.Evaluator;
+import net.kanstren.littlepos.persist.PBReader;
+import net.kanstren.littlepos.persist.PBWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Prunes and optionally quantizes a trained model, and reports how much smaller it got and how the accuracy changed.
+ * Accuracy is measured with Evaluator, by tagging each test sentence and comparing the tags word by word.
+ * Parameters: model file, test file (same format as for PredictionTester), pruning threshold,
+ * optional bits for quantization (8 or 16, 0 = none), and optional file name to write the compacted model to.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ModelCompactor {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String modelFilename = args[0];
+    String testFilename = args[1];
+    double threshold = Double.parseDouble(args[2]);
+    int quantizationBits = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+    List<TagSentence> sentences = Evaluator.readSentences(Paths.get(testFilename));
+    log.info("Loaded "+sentences.size()+" test sentences.");
+
+    PerceptronTagger tagger = PBReader.readFrom(modelFilename);
+    long originalSize = Files.size(Paths.get(modelFilename));
+    int inferenceSize = new PBWriter(tagger, true).toBytes().length;
+    double originalAccuracy = new Evaluator(tagger.freeze()).evaluate(sentences).accuracy();
+
+    tagger.compact(threshold, quantizationBits);
+    byte[] compacted = new PBWriter(tagger, true).toBytes();
+    //measure the model as it is after storing and loading, the same as it would be used for tagging
+    double compactedAccuracy = new Evaluator(PBReader.createFrom(compacted).freeze()).evaluate(sentences).accuracy();
+
+    log.info("Model size: original "+originalSize+" bytes, inference only "+inferenceSize+" bytes, compacted "+compacted.length+" bytes.");
+    log.info(String.format("Size reduction: %.1fx from original, %.1fx from inference only.",
+        (double) originalSize / compacted.length, (double) inferenceSize / compacted.length));
+    log.info(String.format("Accuracy: original %.4f, compacted %.4f, change %+.4f.",
+        originalAccuracy, compactedAccuracy, compactedAccuracy - originalAccuracy));
+    if (args.length > 4) {
+      Files.write(Paths.get(args[4]), compacted);
+      log.info("Wrote compacted model to "+args[4]+".");
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package net.kanstren.littlepos.examples;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.persist.PBReader;
+import net.kanstren.littlepos.persist.PBStreamWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Converts a protobuf model file into the streamed protobuf model format, for models too big to handle as one message.
+ * Takes the protobuf model file name and the streamed model file name as parameters.
+ * An optional third parameter "inference" writes only what is needed for tagging.
+ *
+ * @author Teemu Kanstren.
+ */
+public class StreamedModelConverter {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String pbFilename = args[0];
+    String streamFilename = args[1];
+    boolean inferenceOnly = args.length > 2 && args[2].equals("inference");
+    log.info("Converting protobuf model '"+pbFilename+"' to streamed model '"+streamFilename+"'.");
+    PerceptronTagger tagger = PBReader.readFrom(pbFilename);
+    new PBStreamWriter(tagger, inferenceOnly, PBStreamWriter.DEFAULT_CHUNK_SIZE).writeToFile(streamFilename);
+    log.info("Conversion done.");
+  }
+}
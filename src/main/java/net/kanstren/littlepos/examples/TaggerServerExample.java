@@ -0,0 +1,44 @@
+package net.kanstren.littlepos.examples;
+
+import io.grpc.ServerBuilder;
+import net.kanstren.littlepos.serving.ModelHolder;
+import net.kanstren.littlepos.serving.TaggerServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Paths;
+
+/**
+ * Runs the tagger as a gRPC service.
+ * Takes the model file name and the port as parameters, and optionally the number of tagging threads
+ * (default is one per core) and a directory to watch for new models to swap in.
+ *
+ * @author Teemu Kanstren.
+ */
+public class TaggerServerExample {
+  private static final Logger log = LogManager.getLogger();
+
+  public static void main(String[] args) throws Exception {
+    String modelFilename = args[0];
+    int port = Integer.parseInt(args[1]);
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    ModelHolder holder = new ModelHolder();
+    if (!holder.load(Paths.get(modelFilename))) {
+      log.error("Model "+modelFilename+" failed the smoke test, not starting.");
+      return;
+    }
+    if (args.length > 3) {
+      holder.watch(Paths.get(args[3]));
+    }
+    TaggerServer server = new TaggerServer(ServerBuilder.forPort(port), holder::tagger, threads).start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.close();
+        holder.close();
+      } catch (Exception e) {
+        log.error("Failed to stop the server cleanly.", e);
+      }
+    }));
+    server.awaitTermination();
+  }
+}
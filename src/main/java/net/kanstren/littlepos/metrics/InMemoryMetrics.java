@@ -0,0 +1,121 @@
+package net.kanstren.littlepos.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the tagger metrics in memory, to be read periodically and passed on to whatever monitoring is in use.
+ * Counters are cumulative from creation.
+ *
+ * @author Teemu Kanstren.
+ */
+public class InMemoryMetrics implements TaggerMetrics {
+  private final LongAdder sentences = new LongAdder();
+  private final LongAdder words = new LongAdder();
+  private final LongAdder singleTagWords = new LongAdder();
+  private final LongAdder unknownWords = new LongAdder();
+  private final LatencyHistogram sentenceLatency = new LatencyHistogram();
+  /** Results for each training iteration, in order. Guarded by itself. */
+  private final List<Iteration> iterations = new ArrayList<>();
+
+  @Override
+  public void sentenceTagged(int words, int singleTagWords, int unknownWords, long nanos) {
+    sentences.increment();
+    this.words.add(words);
+    this.singleTagWords.add(singleTagWords);
+    this.unknownWords.add(unknownWords);
+    sentenceLatency.record(nanos);
+  }
+
+  @Override
+  public void iterationFinished(int iteration, long words, long correct, long nanos) {
+    synchronized (iterations) {
+      iterations.add(new Iteration(iteration, words, correct, nanos));
+    }
+  }
+
+  public long sentences() {
+    return sentences.sum();
+  }
+
+  public long words() {
+    return words.sum();
+  }
+
+  /**
+   * @return Number of words tagged from the single tag lexicon.
+   */
+  public long singleTagWords() {
+    return singleTagWords.sum();
+  }
+
+  /**
+   * @return Number of words tagged by model prediction.
+   */
+  public long predictedWords() {
+    return words.sum() - singleTagWords.sum();
+  }
+
+  /**
+   * @return Number of predicted words tagged UNKNOWN since none of their features had a weight.
+   */
+  public long unknownWords() {
+    return unknownWords.sum();
+  }
+
+  public LatencyHistogram sentenceLatency() {
+    return sentenceLatency;
+  }
+
+  /**
+   * @return Copy of the results for training iterations so far.
+   */
+  public List<Iteration> iterations() {
+    synchronized (iterations) {
+      return new ArrayList<>(iterations);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryMetrics{sentences="+sentences()+", words="+words()+", singleTagWords="+singleTagWords()
+        +", predictedWords="+predictedWords()+", unknownWords="+unknownWords()+", latency="+sentenceLatency+"}";
+  }
+
+  /**
+   * Results of one training iteration.
+   */
+  public static class Iteration {
+    public final int iteration;
+    public final long words;
+    public final long correct;
+    public final long nanos;
+
+    public Iteration(int iteration, long words, long correct, long nanos) {
+      this.iteration = iteration;
+      this.words = words;
+      this.correct = correct;
+      this.nanos = nanos;
+    }
+
+    /**
+     * @return Share of words predicted correctly during the iteration.
+     */
+    public double accuracy() {
+      return words == 0 ? 0 : (double) correct / words;
+    }
+
+    /**
+     * @return Words trained per second.
+     */
+    public double wordsPerSecond() {
+      return nanos == 0 ? 0 : words * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+      return "Iteration{"+iteration+": accuracy="+accuracy()+", wordsPerSecond="+(long) wordsPerSecond()+"}";
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package net.kanstren.littlepos.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies, with each power of two nanoseconds split into 8 equal sub-buckets.
+ * Values below 8ns get a bucket each. So percentiles are accurate to within 12.5%,
+ * without any allocation or locking when recording.
+ * Histograms recorded separately, e.g. one per thread, can be combined with merge().
+ *
+ * @author Teemu Kanstren.
+ */
+public class LatencyHistogram {
+  /** Bits of each power of two used to pick the sub-bucket. */
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /** Enough buckets for the largest long value. */
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * @param nanos The latency to record.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    buckets.incrementAndGet(bucket(nanos));
+    count.increment();
+    total.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  /**
+   * Add the latencies recorded in another histogram to this one.
+   *
+   * @param other The histogram to add. Should not be recorded to at the same time.
+   */
+  public void merge(LatencyHistogram other) {
+    for (int i = 0 ; i < BUCKETS ; i++) {
+      long n = other.buckets.get(i);
+      if (n > 0) buckets.addAndGet(i, n);
+    }
+    count.add(other.count.sum());
+    total.add(other.total.sum());
+    max.accumulate(other.max());
+  }
+
+  /**
+   * @param nanos Non-negative latency.
+   * @return Index of the bucket for the latency.
+   */
+  private static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS) return (int) nanos;
+    int highBit = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (highBit - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (highBit - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @param bucket Index of a bucket.
+   * @return The largest latency in the bucket.
+   */
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    long upper = lower + (1L << shift) - 1;
+    //the last buckets overflow
+    return upper < lower ? Long.MAX_VALUE : upper;
+  }
+
+  /**
+   * @return Number of recorded latencies.
+   */
+  public long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return Mean of the recorded latencies in nanoseconds, 0 if none.
+   */
+  public double mean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) total.sum() / n;
+  }
+
+  /**
+   * @return Largest recorded latency in nanoseconds.
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile Between 0 and 100.
+   * @return Upper bound of the bucket with the given percentile of the latencies, in nanoseconds. 0 if none recorded.
+   */
+  public long percentile(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0 ; i < counts.length ; i++) {
+      counts[i] = buckets.get(i);
+      n += counts[i];
+    }
+    if (n == 0) return 0;
+    long rank = (long) Math.ceil(percentile / 100 * n);
+    long seen = 0;
+    for (int i = 0 ; i < counts.length ; i++) {
+      seen += counts[i];
+      if (seen >= rank && counts[i] > 0) {
+        //no bucket bound is more than the max seen
+        return Math.min(upperBound(i), max());
+      }
+    }
+    return max();
+  }
+
+  @Override
+  public String toString() {
+    return "count="+count()+" mean="+(long) mean()+"ns p50<="+percentile(50)+"ns p95<="+percentile(95)+"ns p99<="+percentile(99)+"ns max="+max()+"ns";
+  }
+}
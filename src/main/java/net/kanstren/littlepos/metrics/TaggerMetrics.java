@@ -0,0 +1,36 @@
+package net.kanstren.littlepos.metrics;
+
+/**
+ * Receives events from tagging and training, for monitoring what goes on inside the tagger.
+ * All methods do nothing by default, so an implementation only needs to override the events it cares about.
+ * Tagging calls may come from several threads at once, so implementations must be thread-safe.
+ * Use NONE to disable metrics, in which case the tagger also skips the timing calls.
+ *
+ * @author Teemu Kanstren.
+ */
+public interface TaggerMetrics {
+  /** No metrics. The default for all taggers. */
+  TaggerMetrics NONE = new TaggerMetrics() {};
+
+  /**
+   * A sentence was tagged. Called once per sentence, with the counts for all its words.
+   *
+   * @param words Number of words in the sentence.
+   * @param singleTagWords Number of words tagged from the single tag lexicon, without prediction.
+   * @param unknownWords Number of predicted words where no feature had a weight, so the tag is UNKNOWN.
+   * @param nanos Time taken to tag the sentence, in nanoseconds.
+   */
+  default void sentenceTagged(int words, int singleTagWords, int unknownWords, long nanos) {
+  }
+
+  /**
+   * A training iteration (epoch) over the training data finished.
+   *
+   * @param iteration Index of the iteration, starting from 0.
+   * @param words Number of words trained on in the iteration.
+   * @param correct Number of those words the model predicted correctly before updating on them.
+   * @param nanos Time taken for the iteration, in nanoseconds.
+   */
+  default void iterationFinished(int iteration, long words, long correct, long nanos) {
+  }
+}
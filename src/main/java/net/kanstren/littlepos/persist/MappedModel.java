@@ -0,0 +1,229 @@
+package net.kanstren.littlepos.persist;
+
+import net.kanstren.littlepos.AveragedPerceptron;
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.TagPredictor;
+import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.Lexicon;
+import net.kanstren.littlepos.datamodel.TagScore;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only model for tagging, served straight from a memory mapped file written by MappedModelWriter.
+ * Opening only reads the header and tag names, the weights and single-tag words stay in the mapped file
+ * outside the Java heap. Feature and word lookups are binary searches over the mapped data.
+ * Only absolute reads are done on the buffer, so one instance can be shared across threads.
+ *
+ * @author Teemu Kanstren.
+ */
+public class MappedModel implements TagPredictor, Lexicon {
+  /** The mapped model file. */
+  private final ByteBuffer buffer;
+  /** Tag names by tag id. */
+  private final String[] tags;
+  private final int updateCount;
+  /** Number of bits for hashed table rows, or 0 if features are stored by id. */
+  private final int hashBits;
+  private final int featureCount;
+  private final int wordCount;
+  private final int keysPosition;
+  private final int weightsPosition;
+  private final int wordOffsetsPosition;
+  private final int wordTagsPosition;
+  private final int wordBytesPosition;
+
+  private MappedModel(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MappedModelWriter.MAGIC) {
+      throw new IOException("Not a mapped model file.");
+    }
+    int version = buffer.getInt(4);
+    if (version != MappedModelWriter.VERSION) {
+      throw new IOException("Unsupported mapped model version "+version+".");
+    }
+    updateCount = buffer.getInt(8);
+    hashBits = buffer.getInt(12);
+    tags = new String[buffer.getInt(16)];
+    featureCount = buffer.getInt(20);
+    wordCount = buffer.getInt(24);
+    keysPosition = (int) buffer.getLong(32);
+    weightsPosition = (int) buffer.getLong(40);
+    wordOffsetsPosition = (int) buffer.getLong(48);
+    wordTagsPosition = (int) buffer.getLong(56);
+    wordBytesPosition = (int) buffer.getLong(64);
+    byte[] tagBytes = new byte[keysPosition - MappedModelWriter.HEADER_SIZE];
+    ByteBuffer tagBuffer = buffer.duplicate();
+    tagBuffer.position(MappedModelWriter.HEADER_SIZE);
+    tagBuffer.get(tagBytes);
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(tagBytes))) {
+      for (int i = 0 ; i < tags.length ; i++) {
+        tags[i] = in.readUTF();
+      }
+    }
+  }
+
+  /**
+   * Memory map a model file written by MappedModelWriter.
+   *
+   * @param filename The file to map.
+   * @return The model.
+   * @throws IOException If reading the file fails.
+   */
+  public static MappedModel open(String filename) throws IOException {
+    return open(Paths.get(filename));
+  }
+
+  /**
+   * Memory map a model file written by MappedModelWriter.
+   *
+   * @param file The file to map.
+   * @return The model.
+   * @throws IOException If reading the file fails.
+   */
+  public static MappedModel open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      //the mapping stays valid after the channel is closed
+      return new MappedModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * @return A thread-safe tagger using this model.
+   */
+  public FrozenTagger tagger() {
+    return new FrozenTagger(this, this);
+  }
+
+  @Override
+  public int tagCount() {
+    return tags.length;
+  }
+
+  @Override
+  public boolean addScores(Features features, int from, int to, double[] scores) {
+    int tagCount = tags.length;
+    boolean found = false;
+    for (int f = from ; f < to ; f++) {
+      long featureId = features.idAt(f);
+      long key = hashBits > 0 ? AveragedPerceptron.hashedRow(featureId, hashBits) : featureId;
+      int index = findFeature(key);
+      if (index < 0) continue;
+      int start = weightsPosition + index * tagCount * 8;
+      for (int tag = 0 ; tag < tagCount ; tag++) {
+        double weight = buffer.getDouble(start + tag * 8);
+        scores[tag] += weight;
+        found |= weight != 0;
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public TagScore best(double[] scores, boolean found) {
+    int tagCount = tags.length;
+    //same special cases as in AveragedPerceptron
+    if (!found) return new TagScore(UNKNOWN, 0);
+    if (updateCount == 0) return new TagScore("", 0);
+    int max = 0;
+    for (int tag = 1 ; tag < tagCount ; tag++) {
+      if (scores[tag] > scores[max]) {
+        max = tag;
+      }
+    }
+    return new TagScore(tags[max], scores[max]);
+  }
+
+  /**
+   * Binary search for a feature key.
+   *
+   * @param key The key to find.
+   * @return Index of the feature, or -1 if not found.
+   */
+  private int findFeature(long key) {
+    int low = 0;
+    int high = featureCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midKey = buffer.getLong(keysPosition + mid * 8);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String tagFor(String word) {
+    int low = 0;
+    int high = wordCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int start = wordBytesPosition + buffer.getInt(wordOffsetsPosition + mid * 4);
+      int end = wordBytesPosition + buffer.getInt(wordOffsetsPosition + mid * 4 + 4);
+      int diff = compareWord(word, start, end);
+      if (diff > 0) {
+        low = mid + 1;
+      } else if (diff < 0) {
+        high = mid - 1;
+      } else {
+        return tags[buffer.getShort(wordTagsPosition + mid * 2)];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compare a word to UTF-8 bytes in the buffer, encoding the word on the fly so no byte array is needed.
+   *
+   * @param word The word to compare.
+   * @param start Start of the bytes to compare to.
+   * @param end End of the bytes to compare to.
+   * @return Negative if word is before the bytes in unsigned byte order, positive if after, 0 if same.
+   */
+  private int compareWord(String word, int start, int end) {
+    int position = start;
+    int length = word.length();
+    for (int i = 0 ; i < length ; i++) {
+      int c = word.charAt(i);
+      if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(word.charAt(i + 1))) {
+        c = Character.toCodePoint((char) c, word.charAt(++i));
+      } else if (Character.isSurrogate((char) c)) {
+        //same as String.getBytes() for unpaired surrogates
+        c = '?';
+      }
+      int bytes = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+      for (int b = 0 ; b < bytes ; b++) {
+        if (position == end) return 1;
+        int diff = utf8Byte(c, bytes, b) - (buffer.get(position++) & 0xff);
+        if (diff != 0) return diff;
+      }
+    }
+    return position == end ? 0 : -1;
+  }
+
+  /**
+   * @param c Code point to encode.
+   * @param bytes Number of bytes in the UTF-8 encoding of the code point.
+   * @param index Which byte of the encoding to give.
+   * @return The byte at given index in the UTF-8 encoding of the code point.
+   */
+  private static int utf8Byte(int c, int bytes, int index) {
+    if (bytes == 1) return c;
+    int shift = 6 * (bytes - 1 - index);
+    if (index > 0) return 0x80 | ((c >> shift) & 0x3f);
+    int lead = bytes == 2 ? 0xc0 : bytes == 3 ? 0xe0 : 0xf0;
+    return lead | (c >> shift);
+  }
+}
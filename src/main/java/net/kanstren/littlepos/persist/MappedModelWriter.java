@@ -0,0 +1,246 @@
+package net.kanstren.littlepos.persist;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.Quantizer;
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * For writing the model in the flat binary format read by MappedModel.
+ * This format only has what is needed for tagging, laid out so it can be used straight from a memory mapped file.
+ * It is written from the protobuf model, so existing .pb model files can be converted with convert().
+ *
+ * The file layout is (all big-endian, sections aligned to 8 bytes):
+ * - header: magic, version, update count, hash bits, tag count, feature count, word count, padding, and section positions.
+ * - tags: tag names in tag id order, as modified UTF-8 strings.
+ * - keys: feature ids sorted in ascending order, as longs. For hashed models the keys are the table row numbers.
+ * - weights: weights for each feature in the key order, as doubles indexed by tag id.
+ * - word offsets: start of each single-tag word in the word bytes, plus end of last word, as ints.
+ * - word tags: tag id for each single-tag word, as shorts.
+ * - word bytes: UTF-8 bytes of the single-tag words, in ascending (unsigned) byte order.
+ *
+ * @author Teemu Kanstren.
+ */
+public class MappedModelWriter {
+  private static final Logger log = LogManager.getLogger();
+  /** "LPMM" as in little pos mapped model. */
+  static final int MAGIC = 0x4c504d4d;
+  static final int VERSION = 1;
+  /** Bytes in the header, including the section positions. */
+  static final int HEADER_SIZE = 8 * 4 + 5 * 8;
+
+  /**
+   * Convert a protobuf model file into a mapped model file.
+   *
+   * @param pbFilename The protobuf model to read.
+   * @param mappedFilename The mapped model file to write.
+   * @throws IOException If reading or writing fails.
+   */
+  public static void convert(String pbFilename, String mappedFilename) throws IOException {
+    Perceptron.PerceptronModel model;
+    try (FileInputStream input = new FileInputStream(pbFilename)) {
+      model = Perceptron.PerceptronModel.parseFrom(input);
+    }
+    write(model, Paths.get(mappedFilename));
+  }
+
+  /**
+   * Write the model of the given tagger into a mapped model file.
+   *
+   * @param tagger The tagger to write.
+   * @param file The file to write.
+   * @throws IOException If writing fails.
+   */
+  public static void write(PerceptronTagger tagger, Path file) throws IOException {
+    Perceptron.PerceptronModel.Builder builder = Perceptron.PerceptronModel.newBuilder();
+    tagger.buildPB(builder);
+    write(builder.build(), file);
+  }
+
+  /**
+   * Write the given protobuf model into a mapped model file.
+   *
+   * @param pb The model to write.
+   * @param file The file to write.
+   * @throws IOException If writing fails.
+   */
+  public static void write(Perceptron.PerceptronModel pb, Path file) throws IOException {
+    int hashBits = pb.getHashBits();
+    String[] tags = tagsOf(pb);
+    Map<String, Integer> tagIds = new HashMap<>();
+    for (int i = 0 ; i < tags.length ; i++) {
+      tagIds.put(tags[i], i);
+    }
+    int tagCount = tags.length;
+    int quantizationBits = pb.getQuantizationBits();
+    //collect the non-empty weight rows with their keys, in the order they are in the model
+    List<double[]> rows = new ArrayList<>();
+    long[] keys = new long[Math.max(pb.getWeightCount(), pb.getHashedRowCount())];
+    if (hashBits > 0) {
+      for (Perceptron.HashedRow hashedRow : pb.getHashedRowList()) {
+        double[] row = new double[tagCount];
+        if (quantizationBits > 0) {
+          Quantizer.decode(hashedRow.getQuantizedWeight(), hashedRow.getScale(), quantizationBits, row, 0);
+        } else {
+          for (int tag = 0 ; tag < tagCount ; tag++) {
+            row[tag] = hashedRow.getWeight(tag);
+          }
+        }
+        keys[rows.size()] = hashedRow.getRow();
+        rows.add(row);
+      }
+    } else {
+      for (Perceptron.FeatureWeights featureWeights : pb.getWeightList()) {
+        double[] row = new double[tagCount];
+        if (quantizationBits > 0) {
+          Quantizer.decode(featureWeights.getQuantizedWeight(), featureWeights.getScale(), quantizationBits, row, 0);
+        } else {
+          if (featureWeights.getWeightCount() == 0) continue;
+          for (Perceptron.TagWeight tagWeight : featureWeights.getWeightList()) {
+            row[tagIds.get(tagWeight.getTag())] = tagWeight.getWeight();
+          }
+        }
+        String name = featureWeights.getFeatureId();
+        keys[rows.size()] = name.isEmpty() ? featureWeights.getFeatureHash() : Features.hash(name);
+        rows.add(row);
+      }
+    }
+    int featureCount = rows.size();
+    long[] sortedKeys = Arrays.copyOf(keys, featureCount);
+    Arrays.sort(sortedKeys);
+    double[][] sortedRows = new double[featureCount][];
+    for (int i = 0 ; i < featureCount ; i++) {
+      sortedRows[Arrays.binarySearch(sortedKeys, keys[i])] = rows.get(i);
+    }
+
+    List<byte[]> words = new ArrayList<>();
+    //byte arrays hash by identity, which is fine as the same arrays are used for lookup below
+    Map<byte[], Integer> wordTags = new HashMap<>();
+    for (Perceptron.WordTag wordTag : pb.getSingleTagList()) {
+      byte[] bytes = wordTag.getWord().getBytes(StandardCharsets.UTF_8);
+      words.add(bytes);
+      wordTags.put(bytes, tagIds.get(wordTag.getTag()));
+    }
+    words.sort(MappedModelWriter::compareBytes);
+    int wordCount = words.size();
+
+    ByteArrayOutputStream tagBytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(tagBytes)) {
+      for (String tag : tags) {
+        out.writeUTF(tag);
+      }
+    }
+    long keysPosition = align(HEADER_SIZE + tagBytes.size());
+    long weightsPosition = keysPosition + featureCount * 8L;
+    long wordOffsetsPosition = align(weightsPosition + featureCount * (long) tagCount * 8);
+    long wordTagsPosition = align(wordOffsetsPosition + (wordCount + 1) * 4L);
+    long wordBytesPosition = align(wordTagsPosition + wordCount * 2L);
+    long wordBytesSize = 0;
+    for (byte[] word : words) {
+      wordBytesSize += word.length;
+    }
+    if (wordBytesPosition + wordBytesSize > Integer.MAX_VALUE) {
+      throw new IOException("Model is too big for a single mapped file: "+(wordBytesPosition + wordBytesSize)+" bytes.");
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(pb.getUpdateCount());
+      out.writeInt(hashBits);
+      out.writeInt(tagCount);
+      out.writeInt(featureCount);
+      out.writeInt(wordCount);
+      out.writeInt(0);
+      out.writeLong(keysPosition);
+      out.writeLong(weightsPosition);
+      out.writeLong(wordOffsetsPosition);
+      out.writeLong(wordTagsPosition);
+      out.writeLong(wordBytesPosition);
+      tagBytes.writeTo(out);
+      pad(out, keysPosition);
+      for (long key : sortedKeys) {
+        out.writeLong(key);
+      }
+      for (double[] row : sortedRows) {
+        for (double weight : row) {
+          out.writeDouble(weight);
+        }
+      }
+      pad(out, wordOffsetsPosition);
+      int offset = 0;
+      for (byte[] word : words) {
+        out.writeInt(offset);
+        offset += word.length;
+      }
+      out.writeInt(offset);
+      pad(out, wordTagsPosition);
+      for (byte[] word : words) {
+        out.writeShort(wordTags.get(word));
+      }
+      pad(out, wordBytesPosition);
+      for (byte[] word : words) {
+        out.write(word);
+      }
+    }
+    log.info("Wrote mapped model "+file+": "+featureCount+" features, "+tagCount+" tags, "+wordCount+" single tag words.");
+  }
+
+  /**
+   * Tags in tag id order, same as the AveragedPerceptron loading the model would have them.
+   */
+  private static String[] tagsOf(Perceptron.PerceptronModel pb) {
+    if (pb.getHashBits() > 0) {
+      return pb.getTagIdList().toArray(new String[0]);
+    }
+    Set<String> tags = new TreeSet<>(pb.getUniqueTagList());
+    tags.addAll(pb.getTagIdList());
+    for (Perceptron.FeatureWeights featureWeights : pb.getWeightList()) {
+      for (Perceptron.TagWeight tagWeight : featureWeights.getWeightList()) {
+        tags.add(tagWeight.getTag());
+      }
+    }
+    return tags.toArray(new String[0]);
+  }
+
+  private static long align(long position) {
+    return (position + 7) & ~7L;
+  }
+
+  private static void pad(DataOutputStream out, long position) throws IOException {
+    while (out.size() < position) {
+      out.writeByte(0);
+    }
+  }
+
+  /**
+   * Compare byte arrays in unsigned lexicographic order, which for UTF-8 is the same as code point order.
+   */
+  static int compareBytes(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0 ; i < length ; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) return diff;
+    }
+    return a.length - b.length;
+  }
+}
@@ -0,0 +1,34 @@
+package net.kanstren.littlepos.persist;
+
+import net.kanstren.littlepos.FrozenTagger;
+
+/**
+ * Opens a stored model for tagging, in whichever format it is stored, based on the file name.
+ * Files ending with ".lpm" are opened as memory mapped models, ".pbs" as streamed protobuf models, others as protobuf models.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ModelFiles {
+  /**
+   * @param filename The model file to open.
+   * @return Tagger for the model.
+   * @throws Exception If reading the model fails.
+   */
+  public static FrozenTagger open(String filename) throws Exception {
+    if (filename.endsWith(".lpm")) {
+      return MappedModel.open(filename).tagger();
+    }
+    if (filename.endsWith(".pbs")) {
+      return PBStreamReader.readFrom(filename).freeze();
+    }
+    return PBReader.readFrom(filename).freeze();
+  }
+
+  /**
+   * @param filename The file name to check.
+   * @return True if the file name has one of the model file endings: ".pb", ".pbs" or ".lpm".
+   */
+  public static boolean isModelFile(String filename) {
+    return filename.endsWith(".pb") || filename.endsWith(".pbs") || filename.endsWith(".lpm");
+  }
+}
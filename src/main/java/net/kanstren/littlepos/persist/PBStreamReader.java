@@ -0,0 +1,92 @@
+package net.kanstren.littlepos.persist;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * For reading a model written by PBStreamWriter.
+ * The chunks are parsed one at a time and added to the model as they are read,
+ * so loading takes little memory over the model itself.
+ *
+ * @author Teemu Kanstren.
+ */
+public class PBStreamReader {
+  /**
+   * @param filename The model file to read.
+   * @return The tagger with the loaded model.
+   * @throws IOException If the file cannot be read or is not a streamed model file.
+   */
+  public static PerceptronTagger readFrom(String filename) throws IOException {
+    try (InputStream input = new BufferedInputStream(new FileInputStream(filename), 1 << 16)) {
+      return readFrom(input);
+    }
+  }
+
+  /**
+   * @param input The stream to read the model from. Not closed here.
+   * @return The tagger with the loaded model.
+   * @throws IOException If the stream cannot be read or does not have a streamed model.
+   */
+  public static PerceptronTagger readFrom(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    if (in.readInt() != PBStreamWriter.MAGIC) {
+      throw new IOException("Not a streamed model file.");
+    }
+    int version = in.readInt();
+    if (version != PBStreamWriter.VERSION) {
+      throw new IOException("Unsupported streamed model version "+version+", expected "+PBStreamWriter.VERSION+".");
+    }
+    Perceptron.ModelHeader header = Perceptron.ModelHeader.parseDelimitedFrom(in);
+    if (header == null) {
+      throw new IOException("Streamed model file has no header.");
+    }
+    try {
+      return PerceptronTagger.buildFromPB(header, new ChunkIterator(in));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Parses the next chunk from the stream only when asked for it.
+   */
+  private static class ChunkIterator implements Iterator<Perceptron.ModelChunk> {
+    private final InputStream in;
+    /** The chunk parsed but not yet given out, null if none. */
+    private Perceptron.ModelChunk next = null;
+
+    private ChunkIterator(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        try {
+          //null at end of stream
+          next = Perceptron.ModelChunk.parseDelimitedFrom(in);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Perceptron.ModelChunk next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      Perceptron.ModelChunk chunk = next;
+      next = null;
+      return chunk;
+    }
+  }
+}
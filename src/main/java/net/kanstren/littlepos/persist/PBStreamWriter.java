@@ -0,0 +1,87 @@
+package net.kanstren.littlepos.persist;
+
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * For writing the model as a stream of protobuf chunks, instead of the single message written by PBWriter.
+ * Each chunk is written as soon as it is built, so saving takes little memory over the model itself,
+ * and the model size is not limited by the max size of a protobuf message.
+ *
+ * The file is a magic number and version as ints, then a length-delimited ModelHeader,
+ * followed by length-delimited ModelChunks until the end of file. Read it with PBStreamReader.
+ *
+ * @author Teemu Kanstren.
+ */
+public class PBStreamWriter {
+  /** "LPMS" as in little pos model stream. */
+  static final int MAGIC = 0x4c504d53;
+  static final int VERSION = 1;
+  /** Default max number of entries in a chunk. */
+  public static final int DEFAULT_CHUNK_SIZE = 10_000;
+  private final PerceptronTagger tagger;
+  /** True to only write what is needed for tagging, see PerceptronTagger.buildPB(). */
+  private final boolean inferenceOnly;
+  /** Max number of entries in a chunk. */
+  private final int chunkSize;
+
+  public PBStreamWriter(PerceptronTagger tagger) {
+    this(tagger, false, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param tagger The tagger to write.
+   * @param inferenceOnly True to write a smaller model that can only be used for tagging, not trained further.
+   * @param chunkSize Max number of entries (words, features) in a chunk.
+   */
+  public PBStreamWriter(PerceptronTagger tagger, boolean inferenceOnly, int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size should be positive, was "+chunkSize);
+    }
+    this.tagger = tagger;
+    this.inferenceOnly = inferenceOnly;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @param filename The file to write the model into.
+   * @throws IOException If writing fails.
+   */
+  public void writeToFile(String filename) throws IOException {
+    try (OutputStream output = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16)) {
+      writeTo(output);
+    }
+  }
+
+  /**
+   * @param output The stream to write the model into. Not closed here.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    tagger.buildHeaderPB(inferenceOnly).writeDelimitedTo(out);
+    try {
+      tagger.buildChunks(inferenceOnly, chunkSize, chunk -> write(chunk, out));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    out.flush();
+  }
+
+  private static void write(Perceptron.ModelChunk chunk, OutputStream out) {
+    try {
+      chunk.writeDelimitedTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -15,9 +15,20 @@ import java.io.FileOutputStream;
 public class PBWriter {
   private static final Logger log = LogManager.getLogger();
   private final PerceptronTagger tagger;
+  /** True to only write what is needed for tagging, see PerceptronTagger.buildPB(). */
+  private final boolean inferenceOnly;
 
   public PBWriter(PerceptronTagger tagger) {
+    this(tagger, false);
+  }
+
+  /**
+   * @param tagger The tagger to write.
+   * @param inferenceOnly True to write a smaller model that can only be used for tagging, not trained further.
+   */
+  public PBWriter(PerceptronTagger tagger, boolean inferenceOnly) {
     this.tagger = tagger;
+    this.inferenceOnly = inferenceOnly;
   }
 
   public byte[] toBytes() {
@@ -36,7 +47,7 @@ public class PBWriter {
 
   private Perceptron.PerceptronModel buildPB() {
     Perceptron.PerceptronModel.Builder builder = Perceptron.PerceptronModel.newBuilder();
-    tagger.buildPB(builder);
+    tagger.buildPB(builder, inferenceOnly);
     return builder.build();
   }
 }
@@ -0,0 +1,366 @@
+package net.kanstren.littlepos.serving;
+
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Tags sentences asynchronously over a shared tagger, giving a future for each sentence.
+ * The number of sentences accepted but not yet tagged is limited. When the limit is reached,
+ * new sentences are either rejected (the future fails with RejectedExecutionException) or the caller is blocked until
+ * there is room, depending on the overflow policy.
+ * Sentences are queued and taken by a limited number of workers, each tagging up to a batch of queued sentences
+ * before giving up its thread. So a burst of small requests is tagged by a few workers in batches instead of
+ * each sentence being handed off to a thread of its own.
+ * Workers run on virtual threads if the runtime has them (Java 21+), otherwise on a fixed pool of platform threads.
+ *
+ * @author Teemu Kanstren.
+ */
+public class AsyncTagger implements AutoCloseable {
+  private static final Logger log = LogManager.getLogger();
+  /** What to do with new sentences when the in-flight limit is reached. */
+  public enum Overflow {
+    /** Fail the future right away with RejectedExecutionException. */
+    REJECT,
+    /** Block the caller until there is room. */
+    BLOCK
+  }
+  /** Gives the tagger to use for each batch. */
+  private final Supplier<FrozenTagger> tagger;
+  /** Max number of sentences accepted but not yet tagged. */
+  private final int maxInFlight;
+  /** What to do when maxInFlight is reached. */
+  private final Overflow overflow;
+  /** Max number of sentences a worker tags before giving up its thread. */
+  private final int batchSize;
+  /** Max number of workers tagging at the same time. Tagging is CPU bound so more than cores does not help. */
+  private final int workers;
+  /** One permit per sentence that can still be accepted. */
+  private final Semaphore permits;
+  /** Sentences waiting for a worker. */
+  private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+  /** Number of sentences in the queue, kept separately since the queue size is not constant time. */
+  private final AtomicInteger queued = new AtomicInteger();
+  /** Number of workers started and not yet finished. */
+  private final AtomicInteger running = new AtomicInteger();
+  /** Runs the workers. */
+  private final ExecutorService executor;
+  /** True if the executor uses virtual threads. */
+  private final boolean virtual;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  /** Set when closed, after which new sentences are rejected. */
+  private volatile boolean closed = false;
+
+  /**
+   * Tagger with one worker per core, an in-flight limit of 1000 per core, rejecting on overflow, and batches of 32.
+   *
+   * @param tagger Gives the tagger to use, e.g. holder::tagger for a ModelHolder.
+   */
+  public AsyncTagger(Supplier<FrozenTagger> tagger) {
+    this(tagger, Runtime.getRuntime().availableProcessors() * 1000, Overflow.REJECT, 32, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param tagger Gives the tagger to use, e.g. holder::tagger for a ModelHolder.
+   * @param maxInFlight Max number of sentences accepted but not yet tagged.
+   * @param overflow What to do with new sentences when maxInFlight is reached.
+   * @param batchSize Max number of sentences a worker tags before giving up its thread.
+   * @param workers Max number of workers tagging at the same time.
+   */
+  public AsyncTagger(Supplier<FrozenTagger> tagger, int maxInFlight, Overflow overflow, int batchSize, int workers) {
+    if (maxInFlight < 1 || batchSize < 1 || workers < 1) {
+      throw new IllegalArgumentException("In-flight limit, batch size and workers must be positive, were "+maxInFlight+", "+batchSize+", "+workers+".");
+    }
+    this.tagger = tagger;
+    this.maxInFlight = maxInFlight;
+    this.overflow = overflow;
+    this.batchSize = batchSize;
+    this.workers = workers;
+    this.permits = new Semaphore(maxInFlight);
+    ExecutorService virtualExecutor = virtualThreadExecutor();
+    this.virtual = virtualExecutor != null;
+    if (virtual) {
+      this.executor = virtualExecutor;
+    } else {
+      AtomicInteger threadCount = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+        Thread thread = new Thread(runnable, "async-tagger-"+threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    log.debug("Async tagger using "+(virtual ? "virtual threads" : "a pool of "+workers+" threads")+".");
+  }
+
+  /**
+   * Looks up Executors.newVirtualThreadPerTaskExecutor() by reflection, so this compiles and runs on Java 8 as well.
+   *
+   * @return Executor running each task on a new virtual thread, or null if the runtime does not have virtual threads.
+   */
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Queue a sentence for tagging.
+   *
+   * @param sentence The sentence to tag, words separated by spaces.
+   * @return Future for the tagged sentence. Fails with RejectedExecutionException if the in-flight limit is reached
+   * with the REJECT policy, or if this tagger is closed.
+   */
+  public CompletableFuture<TagSentence> tagAsync(String sentence) {
+    CompletableFuture<TagSentence> future = new CompletableFuture<>();
+    if (closed) {
+      return reject(future, "Async tagger is closed.");
+    }
+    if (overflow == Overflow.REJECT) {
+      if (!permits.tryAcquire()) {
+        return reject(future, "Over "+maxInFlight+" sentences in flight.");
+      }
+    } else {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.completeExceptionally(e);
+        return future;
+      }
+    }
+    Request request = new Request(sentence, future);
+    queue.add(request);
+    queued.incrementAndGet();
+    //close() may have drained the queue between the check above and adding to it.
+    //if the request is still there it would never be taken, so take it back and reject it
+    if (closed && queue.remove(request)) {
+      queued.decrementAndGet();
+      permits.release();
+      return reject(future, "Async tagger is closed.");
+    }
+    startWorker();
+    return future;
+  }
+
+  private CompletableFuture<TagSentence> reject(CompletableFuture<TagSentence> future, String reason) {
+    rejected.incrementAndGet();
+    future.completeExceptionally(new RejectedExecutionException(reason));
+    return future;
+  }
+
+  /**
+   * Start a new worker if there are less than the max number running.
+   * Otherwise the running ones will get to the queued sentences.
+   */
+  private void startWorker() {
+    while (true) {
+      int count = running.get();
+      if (count >= workers) return;
+      if (running.compareAndSet(count, count + 1)) break;
+    }
+    try {
+      executor.execute(this::work);
+    } catch (RejectedExecutionException e) {
+      //closed while starting, close() tags the sentences left in the queue
+      running.decrementAndGet();
+    }
+  }
+
+  /**
+   * Tag batches of queued sentences until the queue is empty.
+   */
+  private void work() {
+    while (true) {
+      Request request = queue.poll();
+      if (request == null) {
+        running.decrementAndGet();
+        //a sentence may have been queued after the poll, when this worker was still counted as running
+        if (queue.isEmpty()) return;
+        while (true) {
+          int count = running.get();
+          if (count >= workers) return;
+          if (running.compareAndSet(count, count + 1)) break;
+        }
+        continue;
+      }
+      int count = tagBatch(request, batchSize);
+      //once closed the executor takes no new workers, so keep going with the queue instead
+      if (count == batchSize && !closed) {
+        //give up the thread so other work can run, a new worker continues with the queue
+        running.decrementAndGet();
+        if (!queue.isEmpty()) startWorker();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Tag a batch of queued sentences with the same tagger.
+   *
+   * @param request The first sentence of the batch, already taken from the queue.
+   * @param max Max number of sentences in the batch, the rest are taken from the queue.
+   * @return Number of sentences in the batch.
+   */
+  private int tagBatch(Request request, int max) {
+    //same tagger for the whole batch, even if the model is swapped meanwhile
+    FrozenTagger current = null;
+    RuntimeException error = null;
+    try {
+      current = tagger.get();
+    } catch (RuntimeException e) {
+      //e.g. no model loaded yet. fail this batch, the next one tries again
+      log.debug("Failed to get tagger for batch: "+e.getMessage());
+      error = e;
+    }
+    int count = 0;
+    while (request != null) {
+      queued.decrementAndGet();
+      if (error == null) {
+        tag(current, request);
+      } else {
+        fail(request, error);
+      }
+      if (++count == max) break;
+      request = queue.poll();
+    }
+    batches.incrementAndGet();
+    return count;
+  }
+
+  private void fail(Request request, Exception error) {
+    failed.incrementAndGet();
+    permits.release();
+    request.future.completeExceptionally(error);
+  }
+
+  private void tag(FrozenTagger current, Request request) {
+    TagSentence tagged;
+    try {
+      tagged = current.tag(request.sentence);
+    } catch (Exception e) {
+      fail(request, e);
+      return;
+    }
+    completed.incrementAndGet();
+    //permit released first, so the count is up to date when the caller sees the result
+    permits.release();
+    request.future.complete(tagged);
+  }
+
+  /**
+   * @return Number of sentences waiting in the queue for a worker.
+   */
+  public int queueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * @return Number of sentences accepted and not yet tagged, including the ones being tagged.
+   */
+  public int inFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  /**
+   * @return Number of sentences rejected since creation.
+   */
+  public long rejected() {
+    return rejected.get();
+  }
+
+  /**
+   * @return Number of sentences tagged since creation.
+   */
+  public long completed() {
+    return completed.get();
+  }
+
+  /**
+   * @return Number of sentences that failed in tagging since creation.
+   */
+  public long failed() {
+    return failed.get();
+  }
+
+  /**
+   * @return Average number of sentences tagged per batch.
+   */
+  public double averageBatchSize() {
+    long count = batches.get();
+    return count == 0 ? 0 : (completed.get() + failed.get()) / (double) count;
+  }
+
+  /**
+   * @return True if the workers run on virtual threads.
+   */
+  public boolean usesVirtualThreads() {
+    return virtual;
+  }
+
+  /**
+   * Stop taking new sentences and wait for the queued ones to be tagged.
+   * Sentences left in the queue when the workers have finished are tagged on the calling thread,
+   * since a worker that gave up its thread just before closing could not start a new one.
+   * Sentences still queued after 10 seconds, or when interrupted while waiting, are failed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdown();
+    boolean finished = false;
+    try {
+      finished = executor.awaitTermination(10, TimeUnit.SECONDS);
+      if (!finished) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    Request request;
+    if (finished && (request = queue.poll()) != null) {
+      tagBatch(request, Integer.MAX_VALUE);
+    }
+    while ((request = queue.poll()) != null) {
+      queued.decrementAndGet();
+      permits.release();
+      request.future.completeExceptionally(new RejectedExecutionException("Async tagger closed before tagging."));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncTagger{queueDepth="+queueDepth()+", inFlight="+inFlight()+", completed="+completed()+", rejected="+rejected()
+        +", failed="+failed()+", averageBatchSize="+String.format("%.1f", averageBatchSize())+", virtualThreads="+virtual+"}";
+  }
+
+  /** A sentence waiting to be tagged. */
+  private static class Request {
+    private final String sentence;
+    private final CompletableFuture<TagSentence> future;
+
+    private Request(String sentence, CompletableFuture<TagSentence> future) {
+      this.sentence = sentence;
+      this.future = future;
+    }
+  }
+}
@@ -0,0 +1,266 @@
+package net.kanstren.littlepos.serving;
+
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.TagPredictor;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import net.kanstren.littlepos.persist.ModelFiles;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the model used for tagging, and replaces it with a new one without stopping the tagging.
+ * A new model is first loaded and checked with a smoke test, and only then swapped in with a single atomic reference update.
+ * Tagging takes the current tagger at the start of each call, so calls already running finish with the old model
+ * while new calls get the new one. Nothing is locked on the tagging path.
+ * If loading or the smoke test fails, the current model is kept.
+ * Models can be loaded on the calling thread, on a background loader thread, or picked up from a watched directory.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ModelHolder implements AutoCloseable {
+  private static final Logger log = LogManager.getLogger();
+  /** Checks that the model gives a real tag for each word of a short sentence, not an empty one or UNKNOWN. */
+  public static final Predicate<FrozenTagger> DEFAULT_SMOKE_TEST = tagger -> {
+    TagSentence tagged = tagger.tag("this is a short test sentence .");
+    if (tagged.getWordTags().size() != 7) return false;
+    for (WordTag wordTag : tagged.getWordTags()) {
+      if (wordTag.tag == null || wordTag.tag.isEmpty() || wordTag.tag.equals(TagPredictor.UNKNOWN)) return false;
+    }
+    return true;
+  };
+  /** Time with no more changes in a watched directory before loading a new model, so a file being written is not read. */
+  private static final long QUIET_MILLIS = 500;
+  /** The model in use, null until the first one is loaded. */
+  private final AtomicReference<ModelVersion> current = new AtomicReference<>();
+  /** For numbering the versions. */
+  private final AtomicLong versionCount = new AtomicLong();
+  /** Opens model files, ModelFiles.open() unless given otherwise. */
+  private final ModelOpener opener;
+  /** A new model is only swapped in if this accepts it. */
+  private final Predicate<FrozenTagger> smokeTest;
+  /** Set up each loaded tagger before it is tested, e.g. with metrics or caches. */
+  private final UnaryOperator<FrozenTagger> configure;
+  /** Held for the whole of each load, so loads run one at a time and versions are swapped in in the order numbered. */
+  private final Object loadLock = new Object();
+  /** Runs the background loads, one at a time. */
+  private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "model-loader"));
+  /** Watches the model directory, null if not watching. */
+  private WatchService watchService = null;
+
+  /**
+   * Holder with the default smoke test and taggers used as loaded.
+   */
+  public ModelHolder() {
+    this(DEFAULT_SMOKE_TEST, UnaryOperator.identity());
+  }
+
+  /**
+   * @param smokeTest Checks a loaded model before it is swapped in. Returning false or throwing keeps the current model.
+   * @param configure Sets up each loaded tagger before it is tested, e.g. tagger -> tagger.withMetrics(metrics).
+   *                  Give each model its own caches here, as the caches must not be shared across models.
+   */
+  public ModelHolder(Predicate<FrozenTagger> smokeTest, UnaryOperator<FrozenTagger> configure) {
+    this(ModelFiles::open, smokeTest, configure);
+  }
+
+  /**
+   * @param opener Opens the model files.
+   * @param smokeTest Checks a loaded model before it is swapped in. Returning false or throwing keeps the current model.
+   * @param configure Sets up each loaded tagger before it is tested.
+   */
+  public ModelHolder(ModelOpener opener, Predicate<FrozenTagger> smokeTest, UnaryOperator<FrozenTagger> configure) {
+    this.opener = opener;
+    this.smokeTest = smokeTest;
+    this.configure = configure;
+  }
+
+  /**
+   * Opens a model file for tagging.
+   */
+  @FunctionalInterface
+  public interface ModelOpener {
+    /**
+     * @param filename The model file to open.
+     * @return Tagger for the model.
+     * @throws Exception If reading the model fails.
+     */
+    FrozenTagger open(String filename) throws Exception;
+  }
+
+  private static Thread daemon(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * @return The tagger with the current model.
+   * @throws NoModelException If no model has been loaded yet.
+   */
+  public FrozenTagger tagger() {
+    return version().tagger;
+  }
+
+  /**
+   * @return The current model and information on it.
+   * @throws NoModelException If no model has been loaded yet.
+   */
+  public ModelVersion version() {
+    ModelVersion version = current.get();
+    if (version == null) {
+      throw new NoModelException("No model loaded yet.");
+    }
+    return version;
+  }
+
+  /**
+   * @return True if a model has been loaded.
+   */
+  public boolean hasModel() {
+    return current.get() != null;
+  }
+
+  /**
+   * Tag a sentence with the current model.
+   *
+   * @param sentence To tag.
+   * @return Tagged sentence.
+   */
+  public TagSentence tag(String sentence) {
+    return tagger().tag(sentence);
+  }
+
+  /**
+   * Load a model on the calling thread, check it with the smoke test, and swap it in if it passes.
+   * Tagging continues with the current model while this runs.
+   * Loads run one at a time, so a load started while another is running waits for it and then replaces its model.
+   *
+   * @param modelFile The model file to load.
+   * @return True if the model was swapped in, false if it failed the smoke test.
+   * @throws Exception If reading the model fails.
+   */
+  public boolean load(Path modelFile) throws Exception {
+    synchronized (loadLock) {
+      return loadAndSwap(modelFile);
+    }
+  }
+
+  private boolean loadAndSwap(Path modelFile) throws Exception {
+    long start = System.currentTimeMillis();
+    log.info("Loading model from "+modelFile+".");
+    FrozenTagger tagger = configure.apply(opener.open(modelFile.toString()));
+    boolean passed;
+    try {
+      passed = smokeTest.test(tagger);
+    } catch (RuntimeException e) {
+      log.error("Smoke test failed with an exception for model "+modelFile+", keeping the current model.", e);
+      return false;
+    }
+    if (!passed) {
+      log.error("Smoke test failed for model "+modelFile+", keeping the current model.");
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    ModelVersion version = new ModelVersion(versionCount.incrementAndGet(), modelFile, now, now - start, tagger);
+    current.set(version);
+    log.info("Swapped in model "+version+".");
+    return true;
+  }
+
+  /**
+   * Load a model on the background loader thread, see load(). Background loads run one at a time, in the order given.
+   *
+   * @param modelFile The model file to load.
+   * @return Completes with true if the model was swapped in, false if it failed the smoke test,
+   * or exceptionally if reading the model failed.
+   */
+  public CompletableFuture<Boolean> loadInBackground(Path modelFile) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return load(modelFile);
+      } catch (Exception e) {
+        log.error("Failed to load model from "+modelFile+", keeping the current model.", e);
+        throw new CompletionException(e);
+      }
+    }, loader);
+  }
+
+  /**
+   * Watch a directory for new model files (".pb", ".pbs" or ".lpm"), and load each one in the background as it appears.
+   * A file is loaded once there have been no changes in the directory for a moment, but writing the file elsewhere
+   * and moving it into the directory is still the safest way to publish a model.
+   * Models already in the directory are not loaded, use load() for the first model.
+   *
+   * @param directory The directory to watch.
+   * @throws IOException If the directory cannot be watched.
+   */
+  public synchronized void watch(Path directory) throws IOException {
+    if (watchService != null) {
+      throw new IllegalStateException("Already watching a directory.");
+    }
+    watchService = directory.getFileSystem().newWatchService();
+    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    WatchService service = watchService;
+    daemon(() -> watchLoop(directory, service), "model-watcher").start();
+    log.info("Watching "+directory+" for new models.");
+  }
+
+  private void watchLoop(Path directory, WatchService service) {
+    try {
+      while (true) {
+        WatchKey key = service.take();
+        Path newest = null;
+        //collect changes until the directory stays quiet, so a file is not loaded while it is still being written
+        while (key != null) {
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+            Path file = directory.resolve((Path) event.context());
+            if (ModelFiles.isModelFile(file.getFileName().toString())) newest = file;
+          }
+          if (!key.reset()) {
+            log.warn("Directory "+directory+" is no longer accessible, stopped watching it.");
+            return;
+          }
+          key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (newest != null) {
+          loadInBackground(newest);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      //closed, so stop watching
+    }
+  }
+
+  /**
+   * Stop watching the directory and stop the loader thread. The current model stays usable.
+   *
+   * @throws IOException If closing the directory watch fails.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    loader.shutdownNow();
+    if (watchService != null) {
+      watchService.close();
+      watchService = null;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package net.kanstren.littlepos.serving;
+
+import net.kanstren.littlepos.FrozenTagger;
+
+import java.nio.file.Path;
+
+/**
+ * A model loaded into a ModelHolder, with information about when and from where it was loaded.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ModelVersion {
+  /** Number of the version, starting from 1 for the first model and growing by one for each swap. */
+  public final long version;
+  /** The file the model was loaded from. */
+  public final Path source;
+  /** Time the model was swapped in, as System.currentTimeMillis(). */
+  public final long loadedAt;
+  /** Time taken to load and check the model, in milliseconds. */
+  public final long loadMillis;
+  /** Tagger with the model. */
+  public final FrozenTagger tagger;
+
+  ModelVersion(long version, Path source, long loadedAt, long loadMillis, FrozenTagger tagger) {
+    this.version = version;
+    this.source = source;
+    this.loadedAt = loadedAt;
+    this.loadMillis = loadMillis;
+    this.tagger = tagger;
+  }
+
+  @Override
+  public String toString() {
+    return "ModelVersion{version="+version+", source="+source+", loadedAt="+loadedAt+", loadMillis="+loadMillis+"}";
+  }
+}
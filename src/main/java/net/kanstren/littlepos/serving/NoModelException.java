@@ -0,0 +1,14 @@
+package net.kanstren.littlepos.serving;
+
+/**
+ * Thrown when tagging is asked for before any model has been loaded.
+ *
+ * @author Teemu Kanstren.
+ */
+public class NoModelException extends IllegalStateException {
+  private static final long serialVersionUID = 1L;
+
+  public NoModelException(String message) {
+    super(message);
+  }
+}
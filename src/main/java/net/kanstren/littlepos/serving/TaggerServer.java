@@ -0,0 +1,105 @@
+package net.kanstren.littlepos.serving;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import net.kanstren.littlepos.FrozenTagger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A gRPC server for the TaggerService, tagging on a fixed number of threads with a bounded queue of sentences waiting for them.
+ * Tagging is CPU bound, so more threads than cores does not help, it only adds more calls in progress.
+ * When the queue is full, new calls fail with RESOURCE_EXHAUSTED instead of piling up in memory.
+ * Give the server builder to use, e.g. ServerBuilder.forPort(port) for a network server,
+ * or InProcessServerBuilder.forName(name) to run it in the same JVM, such as for testing.
+ *
+ * @author Teemu Kanstren.
+ */
+public class TaggerServer implements AutoCloseable {
+  private static final Logger log = LogManager.getLogger();
+  /** Default size of the queue of sentences waiting to be tagged, per tagging thread. */
+  public static final int QUEUE_PER_THREAD = 100;
+  private final Server server;
+  /** Runs the service calls. */
+  private final ExecutorService executor;
+
+  /**
+   * Server with a queue of QUEUE_PER_THREAD sentences per thread.
+   *
+   * @param builder For building the server, with the transport and address set.
+   * @param tagger Gives the tagger to use for each sentence.
+   * @param threads Number of threads to tag on.
+   */
+  public TaggerServer(ServerBuilder<?> builder, Supplier<FrozenTagger> tagger, int threads) {
+    this(builder, tagger, threads, threads * QUEUE_PER_THREAD);
+  }
+
+  /**
+   * @param builder For building the server, with the transport and address set.
+   * @param tagger Gives the tagger to use for each sentence.
+   * @param threads Number of threads to tag on.
+   * @param queueSize Max number of sentences waiting for a tagging thread.
+   */
+  public TaggerServer(ServerBuilder<?> builder, Supplier<FrozenTagger> tagger, int threads, int queueSize) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> new Thread(runnable, "tagger-"+threadCount.incrementAndGet());
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), threadFactory);
+    //the gRPC callbacks only hand the tagging over to the executor, so they can run on the transport threads
+    this.server = builder.directExecutor().addService(new TaggerService(tagger, executor)).build();
+  }
+
+  /**
+   * Start serving.
+   *
+   * @return This server, for chaining.
+   * @throws IOException If the server cannot be started, e.g. the port is in use.
+   */
+  public TaggerServer start() throws IOException {
+    server.start();
+    log.info("Tagger server started on port "+server.getPort()+".");
+    return this;
+  }
+
+  /**
+   * @return The port the server listens to, -1 if not a network server.
+   */
+  public int port() {
+    return server.getPort();
+  }
+
+  /**
+   * Wait until the server is shut down.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void awaitTermination() throws InterruptedException {
+    server.awaitTermination();
+  }
+
+  /**
+   * Stop taking new calls, let the calls in progress finish for a moment, and then stop the server and its threads.
+   */
+  @Override
+  public void close() {
+    server.shutdown();
+    try {
+      if (!server.awaitTermination(5, TimeUnit.SECONDS)) {
+        server.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      server.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    executor.shutdown();
+    log.info("Tagger server stopped.");
+  }
+}
@@ -0,0 +1,220 @@
+package net.kanstren.littlepos.serving;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+import net.kanstren.littlepos.generated.protobuf.TaggerGrpc;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * The Tagger gRPC service, tagging sentences with a shared tagger.
+ * The tagger is taken from the given supplier for each sentence, so it can be a ModelHolder that swaps models while serving.
+ * The tagging runs on the given executor, and the gRPC callbacks only hand the work over to it.
+ * If the executor rejects the work, e.g. its queue is full, the call fails with RESOURCE_EXHAUSTED.
+ * TagStream uses manual flow control: the next request is only read once the response to the previous one can be sent
+ * without buffering, so a client sending faster than it reads gets slowed down instead of filling the server memory.
+ *
+ * @author Teemu Kanstren.
+ */
+public class TaggerService extends TaggerGrpc.TaggerImplBase {
+  private static final Logger log = LogManager.getLogger();
+  /** Gives the tagger to use for each sentence. */
+  private final Supplier<FrozenTagger> tagger;
+  /** Runs the tagging. */
+  private final Executor executor;
+
+  /**
+   * Service tagging on the gRPC call threads.
+   *
+   * @param tagger Gives the tagger to use, e.g. holder::tagger for a ModelHolder. Called for each sentence.
+   */
+  public TaggerService(Supplier<FrozenTagger> tagger) {
+    this(tagger, Runnable::run);
+  }
+
+  /**
+   * @param tagger Gives the tagger to use, e.g. holder::tagger for a ModelHolder. Called for each sentence.
+   * @param executor Runs the tagging. Rejecting the work fails the call with RESOURCE_EXHAUSTED.
+   */
+  public TaggerService(Supplier<FrozenTagger> tagger, Executor executor) {
+    this.tagger = tagger;
+    this.executor = executor;
+  }
+
+  @Override
+  public void tag(Perceptron.TagRequest request, StreamObserver<Perceptron.TagResponse> responseObserver) {
+    try {
+      executor.execute(() -> respond(request, responseObserver));
+    } catch (RejectedExecutionException e) {
+      responseObserver.onError(busy().asRuntimeException());
+    }
+  }
+
+  private void respond(Perceptron.TagRequest request, StreamObserver<Perceptron.TagResponse> responseObserver) {
+    Perceptron.TagResponse response;
+    try {
+      response = tag(request);
+    } catch (Exception e) {
+      responseObserver.onError(toStatus(e).asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public StreamObserver<Perceptron.TagRequest> tagStream(StreamObserver<Perceptron.TagResponse> responseObserver) {
+    return new TagStream((ServerCallStreamObserver<Perceptron.TagResponse>) responseObserver);
+  }
+
+  /**
+   * One TagStream call. A request is asked for only when the previous one is tagged and the response can be sent.
+   * The tagging runs on the executor while the client can complete or cancel the call on the gRPC threads,
+   * so the state is only changed holding the lock of this object. The state also makes sure only one thread at a time
+   * sends to the client. That is done outside the lock, as gRPC may call back into this from its own locks.
+   */
+  private class TagStream implements StreamObserver<Perceptron.TagRequest> {
+    private final ServerCallStreamObserver<Perceptron.TagResponse> responses;
+    /** True when a request has been asked for and not yet received, so no more than one is asked for. */
+    private boolean requested = false;
+    /** True while a request is being tagged and its response sent. */
+    private boolean tagging = false;
+    /** True when the client has sent all its requests. */
+    private boolean halfClosed = false;
+    /** Set when the call has ended, to ignore anything still coming in. */
+    private boolean done = false;
+
+    private TagStream(ServerCallStreamObserver<Perceptron.TagResponse> responses) {
+      this.responses = responses;
+      responses.disableAutoInboundFlowControl();
+      responses.setOnReadyHandler(this::requestNext);
+    }
+
+    private void requestNext() {
+      synchronized (this) {
+        if (done || requested || tagging || !responses.isReady()) return;
+        requested = true;
+      }
+      responses.request(1);
+    }
+
+    @Override
+    public void onNext(Perceptron.TagRequest request) {
+      synchronized (this) {
+        if (done) return;
+        requested = false;
+        tagging = true;
+      }
+      try {
+        executor.execute(() -> tagAndRespond(request));
+      } catch (RejectedExecutionException e) {
+        synchronized (this) {
+          tagging = false;
+          done = true;
+        }
+        responses.onError(busy().asRuntimeException());
+      }
+    }
+
+    private void tagAndRespond(Perceptron.TagRequest request) {
+      Perceptron.TagResponse response;
+      try {
+        response = tag(request);
+      } catch (Exception e) {
+        synchronized (this) {
+          tagging = false;
+          if (done) return;
+          done = true;
+        }
+        responses.onError(toStatus(e).asRuntimeException());
+        return;
+      }
+      synchronized (this) {
+        if (done) return;
+      }
+      try {
+        responses.onNext(response);
+      } catch (RuntimeException e) {
+        //cancelled by the client after the check above
+        log.debug("Failed to send tag stream response: "+Status.fromThrowable(e));
+        return;
+      }
+      boolean complete;
+      synchronized (this) {
+        tagging = false;
+        complete = halfClosed && !done;
+        done |= complete;
+      }
+      if (complete) {
+        responses.onCompleted();
+      } else {
+        requestNext();
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      synchronized (this) {
+        done = true;
+      }
+      log.debug("Tag stream closed by client: "+Status.fromThrowable(t));
+    }
+
+    @Override
+    public void onCompleted() {
+      synchronized (this) {
+        if (done) return;
+        halfClosed = true;
+        //if still tagging, the call is completed once the last response is sent
+        if (tagging) return;
+        done = true;
+      }
+      responses.onCompleted();
+    }
+  }
+
+  /**
+   * @param request Sentence to tag.
+   * @return The tagged words.
+   */
+  private Perceptron.TagResponse tag(Perceptron.TagRequest request) {
+    String sentence = request.getSentence().trim();
+    if (sentence.isEmpty()) {
+      throw new IllegalArgumentException("Empty sentence in request "+request.getId()+".");
+    }
+    TagSentence tagged = tagger.get().tag(sentence);
+    Perceptron.TagResponse.Builder response = Perceptron.TagResponse.newBuilder().setId(request.getId());
+    for (WordTag wordTag : tagged.getWordTags()) {
+      response.addWord(Perceptron.WordTag.newBuilder().setWord(wordTag.word).setTag(wordTag.tag));
+    }
+    return response.build();
+  }
+
+  private static Status busy() {
+    return Status.RESOURCE_EXHAUSTED.withDescription("Too many sentences waiting to be tagged, try again later.");
+  }
+
+  /**
+   * @param e Failure in tagging.
+   * @return Status to give to the client for the failure.
+   */
+  private static Status toStatus(Exception e) {
+    if (e instanceof IllegalArgumentException) {
+      return Status.INVALID_ARGUMENT.withDescription(e.getMessage());
+    }
+    if (e instanceof NoModelException) {
+      return Status.UNAVAILABLE.withDescription(e.getMessage());
+    }
+    log.error("Failed to tag sentence.", e);
+    return Status.INTERNAL.withDescription("Failed to tag sentence: "+e);
+  }
+}
@@ -0,0 +1,76 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import net.kanstren.littlepos.persist.PBStreamWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that training resumed from a checkpoint ends up with the same model as training straight through.
+ *
+ * @author Teemu Kanstren.
+ */
+public class CheckpointerTest {
+  private static final int ITERATIONS = 5;
+  /** Checkpoint after iteration 3, so the resumed run trains the last 2 iterations. */
+  private static final int INTERVAL = 3;
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * @return Sentences where the tag mostly follows from the word, with some noise so the weights keep changing.
+   */
+  private static List<TagSentence> sentences() {
+    Random random = new Random(1);
+    List<TagSentence> sentences = new ArrayList<>();
+    for (int i = 0 ; i < 300 ; i++) {
+      TagSentence sentence = new TagSentence();
+      int length = 3 + random.nextInt(8);
+      for (int w = 0 ; w < length ; w++) {
+        int word = random.nextInt(50);
+        int tag = random.nextInt(10) == 0 ? random.nextInt(5) : word % 5;
+        sentence.add(new WordTag("w"+word, "T"+tag));
+      }
+      sentences.add(sentence);
+    }
+    return sentences;
+  }
+
+  private static byte[] bytes(PerceptronTagger tagger) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new PBStreamWriter(tagger).writeTo(out);
+    return out.toByteArray();
+  }
+
+  private void assertResumeGivesSameModel(PerceptronTagger straight) throws Exception {
+    List<TagSentence> sentences = sentences();
+    Path file = folder.getRoot().toPath().resolve("train.checkpoint");
+    straight.setCheckpoints(file, INTERVAL);
+    straight.train(sentences, 1, ITERATIONS);
+    PerceptronTagger resumed = PerceptronTagger.resumeFromCheckpoint(file, sentences);
+    assertArrayEquals(bytes(straight), bytes(resumed));
+  }
+
+  @Test
+  public void resumeWithSeed() throws Exception {
+    PerceptronTagger tagger = new PerceptronTagger();
+    tagger.setShuffleSeed(7);
+    assertResumeGivesSameModel(tagger);
+  }
+
+  @Test
+  public void resumeWithoutSeed() throws Exception {
+    //the shuffling continues from the random state stored in the checkpoint, not from a seed
+    assertResumeGivesSameModel(new PerceptronTagger());
+  }
+}
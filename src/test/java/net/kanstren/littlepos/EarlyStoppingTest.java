@@ -0,0 +1,55 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that training with a dev set rejects bad limits before touching the current model.
+ *
+ * @author Teemu Kanstren.
+ */
+public class EarlyStoppingTest {
+  private static List<TagSentence> sentences() {
+    List<TagSentence> sentences = new ArrayList<>();
+    String[] words = {"the", "dog", "runs"};
+    String[] tags = {"A", "B", "C"};
+    for (int i = 0 ; i < 30 ; i++) {
+      TagSentence sentence = new TagSentence();
+      for (int w = 0 ; w < words.length ; w++) {
+        sentence.add(new WordTag(words[w], tags[w]));
+      }
+      sentences.add(sentence);
+    }
+    return sentences;
+  }
+
+  private static void assertRejected(PerceptronTagger tagger, List<TagSentence> dev, int maxIterations, int patience) {
+    try {
+      tagger.train(sentences(), dev, 1, maxIterations, patience);
+      fail("Expected IllegalArgumentException for maxIterations="+maxIterations+", patience="+patience);
+    } catch (IllegalArgumentException e) {
+      //expected
+    }
+  }
+
+  @Test
+  public void badLimitsAreRejected() {
+    PerceptronTagger tagger = new PerceptronTagger();
+    tagger.train(sentences());
+    List<TagSentence> dev = sentences().subList(0, 5);
+    assertRejected(tagger, dev, 10, 0);
+    assertRejected(tagger, dev, 10, -1);
+    assertRejected(tagger, dev, 0, 2);
+    assertRejected(tagger, Collections.emptyList(), 10, 2);
+    //the model trained before is still there
+    assertEquals("B", tagger.tag("the dog runs").getWordTags().get(1).tag);
+  }
+}
@@ -0,0 +1,86 @@
+package net.kanstren.littlepos;
+
+import net.kanstren.littlepos.datamodel.CompactLexicon;
+import net.kanstren.littlepos.datamodel.Features;
+import net.kanstren.littlepos.datamodel.TagScore;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that cached results are kept apart by model, and that the cache does not keep old models in memory.
+ *
+ * @author Teemu Kanstren.
+ */
+public class SentenceCacheTest {
+  private static final String[] words = {"the", "dog", "runs"};
+
+  /**
+   * @return A model that only has an identity, which is all the cache looks at.
+   */
+  private static TagPredictor model() {
+    return new TagPredictor() {
+      @Override
+      public int tagCount() {
+        return 0;
+      }
+
+      @Override
+      public boolean addScores(Features features, int from, int to, double[] scores) {
+        return false;
+      }
+
+      @Override
+      public TagScore best(double[] scores, boolean found) {
+        return new TagScore(UNKNOWN, 0);
+      }
+    };
+  }
+
+  private static SentenceCache.Result result(String... tags) {
+    return new SentenceCache.Result(tags, 0, 0);
+  }
+
+  @Test
+  public void resultsAreKeptApartByModel() {
+    SentenceCache cache = new SentenceCache(100);
+    TagPredictor first = model();
+    TagPredictor second = model();
+    SentenceCache.Result abc = result("A", "B", "C");
+    cache.put(first, CompactLexicon.EMPTY, words, abc);
+    assertSame(abc, cache.get(first, CompactLexicon.EMPTY, words.clone()));
+    assertNull(cache.get(second, CompactLexicon.EMPTY, words));
+    assertNull(cache.get(first, CompactLexicon.of(new HashMap<>()), words));
+  }
+
+  /**
+   * Cache a result for a model that is not referenced after this returns, as after swapping in a new model.
+   */
+  private static WeakReference<TagPredictor> cacheWithDroppedModel(SentenceCache cache) {
+    TagPredictor old = model();
+    cache.put(old, CompactLexicon.EMPTY, words, result("X", "Y", "Z"));
+    return new WeakReference<>(old);
+  }
+
+  @Test
+  public void oldModelIsNotKeptInMemory() throws Exception {
+    SentenceCache cache = new SentenceCache(100);
+    WeakReference<TagPredictor> old = cacheWithDroppedModel(cache);
+    TagPredictor current = model();
+    SentenceCache.Result abc = result("A", "B", "C");
+    cache.put(current, CompactLexicon.EMPTY, words, abc);
+    //the entry of the old model is still in the cache, but does not keep the model reachable
+    assertEquals(2, cache.size());
+    for (int i = 0 ; i < 100 && old.get() != null ; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(old.get());
+    assertSame(abc, cache.get(current, CompactLexicon.EMPTY, words));
+  }
+}
@@ -0,0 +1,60 @@
+package net.kanstren.littlepos.corpus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Converts text corpora to the binary format and reads them back,
+ * with sentence counts at the points where the offset array grows.
+ *
+ * @author Teemu Kanstren.
+ */
+public class BinaryCorpusTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Convert a corpus of the given number of sentences, each sentence i being "w0 T0" to "wi%3 Ti%3", and check it reads back.
+   */
+  private void assertConverts(int sentences, boolean trailingEmptyLine) throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0 ; i < sentences ; i++) {
+      if (i > 0) text.append("\n");
+      for (int w = 0 ; w <= i % 3 ; w++) {
+        text.append("w").append(w).append(" T").append(w).append("\n");
+      }
+    }
+    if (trailingEmptyLine) text.append("\n");
+    Path textFile = folder.newFile().toPath();
+    Files.write(textFile, text.toString().getBytes(StandardCharsets.UTF_8));
+    Path corpusFile = folder.newFile().toPath();
+    BinaryCorpus.convert(textFile, corpusFile);
+    BinaryCorpus corpus = BinaryCorpus.open(corpusFile);
+    assertEquals(sentences, corpus.sentenceCount());
+    long tokens = 0;
+    for (int i = 0 ; i < sentences ; i++) {
+      assertEquals(tokens, corpus.sentenceStart(i));
+      assertEquals(i % 3 + 1, corpus.sentenceLength(i));
+      tokens += i % 3 + 1;
+    }
+    assertEquals(tokens, corpus.tokenCount());
+    int last = sentences - 1;
+    assertEquals("w"+(last % 3), corpus.wordAt(tokens - 1));
+    assertEquals("T"+(last % 3), corpus.tagAt(tokens - 1));
+  }
+
+  @Test
+  public void atOffsetArraySize() throws Exception {
+    for (int sentences : new int[]{1023, 1024, 1025, 2048}) {
+      assertConverts(sentences, false);
+      assertConverts(sentences, true);
+    }
+  }
+}
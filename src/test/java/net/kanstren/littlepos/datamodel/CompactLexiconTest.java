@@ -0,0 +1,30 @@
+package net.kanstren.littlepos.datamodel;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that words are found whatever chars they have, including ones that do not encode to UTF-8 as such.
+ *
+ * @author Teemu Kanstren.
+ */
+public class CompactLexiconTest {
+  @Test
+  public void findsAllKindsOfWords() {
+    //ascii, accented, a supplementary char as a surrogate pair, and unpaired surrogates that encode to '?'
+    List<String> words = Arrays.asList("dog", "caf\u00e9", "\ud83d\ude00", "a\ud800b", "\udc00", "x\ud83d");
+    List<String> tags = Arrays.asList("NN", "NN", "SYM", "X", "Y", "Z");
+    CompactLexicon lexicon = CompactLexicon.of(words, tags);
+    for (int i = 0 ; i < words.size() ; i++) {
+      assertEquals(words.get(i), tags.get(i), lexicon.tagFor(words.get(i)));
+    }
+    assertNull(lexicon.tagFor("cat"));
+    assertNull(lexicon.tagFor("ab"));
+    assertNull(lexicon.tagFor("x\ud83d\ude00"));
+  }
+}
@@ -0,0 +1,173 @@
+package net.kanstren.littlepos.serving;
+
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the in-flight limit, failed batches and closing with sentences still queued.
+ *
+ * @author Teemu Kanstren.
+ */
+public class AsyncTaggerTest {
+  private static final FrozenTagger tagger = train();
+
+  private static FrozenTagger train() {
+    List<TagSentence> sentences = new ArrayList<>();
+    String[] words = {"the", "dog", "runs"};
+    String[] tags = {"A", "B", "C"};
+    for (int i = 0 ; i < 30 ; i++) {
+      TagSentence sentence = new TagSentence();
+      for (int w = 0 ; w < words.length ; w++) {
+        sentence.add(new WordTag(words[w], tags[w]));
+      }
+      sentences.add(sentence);
+    }
+    PerceptronTagger tagger = new PerceptronTagger();
+    tagger.train(sentences);
+    return tagger.freeze();
+  }
+
+  /**
+   * @param release Latch the first call waits for, to keep the worker busy with its first batch.
+   * @return Supplier giving the tagger.
+   */
+  private static Supplier<FrozenTagger> blockedFirst(CountDownLatch release) {
+    AtomicBoolean first = new AtomicBoolean(true);
+    return () -> {
+      if (first.getAndSet(false)) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return tagger;
+    };
+  }
+
+  private static Throwable cause(CompletableFuture<TagSentence> future) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    fail("Expected the future to fail.");
+    return null;
+  }
+
+  @Test
+  public void closeTagsQueuedSentences() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AsyncTagger async = new AsyncTagger(blockedFirst(release), 200, AsyncTagger.Overflow.REJECT, 4, 1);
+    List<CompletableFuture<TagSentence>> futures = new ArrayList<>();
+    for (int i = 0 ; i < 200 ; i++) {
+      futures.add(async.tagAsync("the dog runs"));
+    }
+    Thread closer = new Thread(async::close);
+    closer.start();
+    //the limit is reached, so new sentences are rejected as over the limit until close() has started
+    long end = System.currentTimeMillis() + 10_000;
+    while (!cause(async.tagAsync("the dog runs")).getMessage().contains("closed")) {
+      assertTrue("close() did not start", System.currentTimeMillis() < end);
+      Thread.sleep(1);
+    }
+    release.countDown();
+    closer.join(20_000);
+    assertFalse(closer.isAlive());
+    for (CompletableFuture<TagSentence> future : futures) {
+      assertEquals("C", future.get(1, TimeUnit.SECONDS).getWordTags().get(2).tag);
+    }
+    assertEquals(200, async.completed());
+    assertEquals(0, async.failed());
+    assertEquals(0, async.inFlight());
+  }
+
+  @Test
+  public void rejectAtLimit() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncTagger async = new AsyncTagger(blockedFirst(release), 2, AsyncTagger.Overflow.REJECT, 4, 1)) {
+      CompletableFuture<TagSentence> first = async.tagAsync("the dog runs");
+      CompletableFuture<TagSentence> second = async.tagAsync("the dog runs");
+      CompletableFuture<TagSentence> third = async.tagAsync("the dog runs");
+      assertTrue(cause(third) instanceof RejectedExecutionException);
+      assertEquals(1, async.rejected());
+      release.countDown();
+      first.get(10, TimeUnit.SECONDS);
+      second.get(10, TimeUnit.SECONDS);
+      assertEquals(2, async.completed());
+    }
+  }
+
+  @Test
+  public void blockAtLimit() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncTagger async = new AsyncTagger(blockedFirst(release), 2, AsyncTagger.Overflow.BLOCK, 4, 1)) {
+      async.tagAsync("the dog runs");
+      async.tagAsync("the dog runs");
+      List<CompletableFuture<TagSentence>> third = new ArrayList<>();
+      Thread caller = new Thread(() -> third.add(async.tagAsync("the dog runs")));
+      caller.start();
+      long end = System.currentTimeMillis() + 10_000;
+      while (caller.getState() != Thread.State.WAITING && System.currentTimeMillis() < end) {
+        Thread.sleep(1);
+      }
+      assertEquals(Thread.State.WAITING, caller.getState());
+      release.countDown();
+      caller.join(10_000);
+      assertEquals("C", third.get(0).get(10, TimeUnit.SECONDS).getWordTags().get(2).tag);
+      assertEquals(0, async.rejected());
+    }
+  }
+
+  @Test
+  public void batchFailsWhenSupplierThrows() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean loaded = new AtomicBoolean(false);
+    AtomicInteger calls = new AtomicInteger();
+    Supplier<FrozenTagger> supplier = () -> {
+      calls.incrementAndGet();
+      if (loaded.get()) return tagger;
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      throw new NoModelException("No model loaded yet.");
+    };
+    //batches of 3, so the failed batch is over after the 3 sentences and the next one gets a new batch
+    try (AsyncTagger async = new AsyncTagger(supplier, 10, AsyncTagger.Overflow.REJECT, 3, 1)) {
+      List<CompletableFuture<TagSentence>> futures = new ArrayList<>();
+      for (int i = 0 ; i < 3 ; i++) {
+        futures.add(async.tagAsync("the dog runs"));
+      }
+      release.countDown();
+      for (CompletableFuture<TagSentence> future : futures) {
+        assertTrue(cause(future) instanceof NoModelException);
+      }
+      assertEquals(1, calls.get());
+      assertEquals(3, async.failed());
+      assertEquals(0, async.inFlight());
+      loaded.set(true);
+      assertEquals("A", async.tagAsync("the dog runs").get(10, TimeUnit.SECONDS).getWordTags().get(0).tag);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package net.kanstren.littlepos.serving;
+
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the model smoke test and the order in which loaded models are swapped in.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ModelHolderTest {
+  private static FrozenTagger train(String tag) {
+    List<TagSentence> sentences = new ArrayList<>();
+    for (int i = 0 ; i < 30 ; i++) {
+      TagSentence sentence = new TagSentence();
+      for (String word : "this is a short test sentence .".split(" ")) {
+        sentence.add(new WordTag(word, tag));
+      }
+      sentences.add(sentence);
+    }
+    PerceptronTagger tagger = new PerceptronTagger();
+    tagger.train(sentences);
+    return tagger.freeze();
+  }
+
+  @Test
+  public void smokeTestRejectsEmptyTags() {
+    assertTrue(ModelHolder.DEFAULT_SMOKE_TEST.test(train("NN")));
+    assertFalse(ModelHolder.DEFAULT_SMOKE_TEST.test(train("")));
+  }
+
+  @Test
+  public void loadsAreSwappedInOrder() throws Exception {
+    FrozenTagger tagger = train("NN");
+    CountDownLatch slowOpening = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ModelHolder holder = new ModelHolder(filename -> {
+      if (filename.equals("slow")) {
+        slowOpening.countDown();
+        release.await();
+      }
+      return tagger;
+    }, ModelHolder.DEFAULT_SMOKE_TEST, UnaryOperator.identity());
+    try {
+      CompletableFuture<Boolean> slow = holder.loadInBackground(Paths.get("slow"));
+      assertTrue(slowOpening.await(10, TimeUnit.SECONDS));
+      //started after the slow one but would finish first, if loads were not run one at a time
+      Thread fast = new Thread(() -> {
+        try {
+          holder.load(Paths.get("fast"));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      fast.start();
+      long end = System.currentTimeMillis() + 10_000;
+      while (fast.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < end) {
+        Thread.sleep(1);
+      }
+      assertEquals(Thread.State.BLOCKED, fast.getState());
+      release.countDown();
+      assertTrue(slow.get(10, TimeUnit.SECONDS));
+      fast.join(10_000);
+      ModelVersion version = holder.version();
+      assertEquals(2, version.version);
+      assertEquals(Paths.get("fast"), version.source);
+    } finally {
+      release.countDown();
+      holder.close();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package net.kanstren.littlepos.serving;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import net.kanstren.littlepos.FrozenTagger;
+import net.kanstren.littlepos.PerceptronTagger;
+import net.kanstren.littlepos.datamodel.TagSentence;
+import net.kanstren.littlepos.datamodel.WordTag;
+import net.kanstren.littlepos.generated.protobuf.Perceptron;
+import net.kanstren.littlepos.generated.protobuf.TaggerGrpc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the tagger server and a client over the gRPC in-process transport.
+ *
+ * @author Teemu Kanstren.
+ */
+public class TaggerServerTest {
+  /** Taggers for the model "files", one tagging the words as A, B, C and the other as X, Y, Z. */
+  private static final Map<String, FrozenTagger> models = new HashMap<>();
+  private ModelHolder holder;
+  private TaggerServer server;
+  private ManagedChannel channel;
+
+  static {
+    models.put("abc", train("A", "B", "C"));
+    models.put("xyz", train("X", "Y", "Z"));
+  }
+
+  private static FrozenTagger train(String... tags) {
+    List<TagSentence> sentences = new ArrayList<>();
+    String[] words = {"the", "dog", "runs"};
+    for (int i = 0 ; i < 30 ; i++) {
+      TagSentence sentence = new TagSentence();
+      for (int w = 0 ; w < words.length ; w++) {
+        sentence.add(new WordTag(words[w], tags[w]));
+      }
+      sentences.add(sentence);
+    }
+    PerceptronTagger tagger = new PerceptronTagger();
+    tagger.train(sentences);
+    return tagger.freeze();
+  }
+
+  @Before
+  public void start() throws Exception {
+    holder = new ModelHolder(models::get, tagger -> true, UnaryOperator.identity());
+    server = new TaggerServer(InProcessServerBuilder.forName("tagger-test"), holder::tagger, 2).start();
+    channel = InProcessChannelBuilder.forName("tagger-test").directExecutor().build();
+  }
+
+  @After
+  public void stop() throws Exception {
+    channel.shutdownNow();
+    server.close();
+    holder.close();
+  }
+
+  private static Perceptron.TagRequest request(String sentence, int id) {
+    return Perceptron.TagRequest.newBuilder().setSentence(sentence).setId(id).build();
+  }
+
+  private static List<String> tags(Perceptron.TagResponse response) {
+    List<String> tags = new ArrayList<>();
+    for (Perceptron.WordTag word : response.getWordList()) {
+      tags.add(word.getTag());
+    }
+    return tags;
+  }
+
+  @Test
+  public void unary() throws Exception {
+    holder.load(Paths.get("abc"));
+    Perceptron.TagResponse response = TaggerGrpc.newBlockingStub(channel).tag(request("the dog runs", 7));
+    assertEquals(7, response.getId());
+    assertEquals(Arrays.asList("A", "B", "C"), tags(response));
+    assertEquals("dog", response.getWord(1).getWord());
+  }
+
+  @Test
+  public void stream() throws Exception {
+    holder.load(Paths.get("abc"));
+    int count = 500;
+    List<Perceptron.TagResponse> responses = new ArrayList<>();
+    CountDownLatch done = new CountDownLatch(1);
+    Throwable[] error = new Throwable[1];
+    StreamObserver<Perceptron.TagRequest> requests = TaggerGrpc.newStub(channel).tagStream(new StreamObserver<Perceptron.TagResponse>() {
+      @Override
+      public void onNext(Perceptron.TagResponse response) {
+        synchronized (responses) {
+          responses.add(response);
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        error[0] = t;
+        done.countDown();
+      }
+
+      @Override
+      public void onCompleted() {
+        done.countDown();
+      }
+    });
+    for (int i = 0 ; i < count ; i++) {
+      requests.onNext(request("the dog runs", i));
+    }
+    requests.onCompleted();
+    assertTrue("Stream did not complete", done.await(10, TimeUnit.SECONDS));
+    assertEquals(null, error[0]);
+    assertEquals(count, responses.size());
+    for (int i = 0 ; i < count ; i++) {
+      assertEquals(i, responses.get(i).getId());
+      assertEquals(Arrays.asList("A", "B", "C"), tags(responses.get(i)));
+    }
+  }
+
+  @Test
+  public void modelSwap() throws Exception {
+    TaggerGrpc.TaggerBlockingStub stub = TaggerGrpc.newBlockingStub(channel);
+    holder.load(Paths.get("abc"));
+    assertEquals(Arrays.asList("A", "B", "C"), tags(stub.tag(request("the dog runs", 1))));
+    holder.load(Paths.get("xyz"));
+    assertEquals(Arrays.asList("X", "Y", "Z"), tags(stub.tag(request("the dog runs", 2))));
+    assertEquals(2, holder.version().version);
+  }
+
+  @Test
+  public void errors() throws Exception {
+    TaggerGrpc.TaggerBlockingStub stub = TaggerGrpc.newBlockingStub(channel);
+    assertStatus(Status.Code.UNAVAILABLE, () -> stub.tag(request("the dog runs", 1)));
+    holder.load(Paths.get("abc"));
+    assertStatus(Status.Code.INVALID_ARGUMENT, () -> stub.tag(request("  ", 2)));
+  }
+
+  @Test
+  public void fullQueueIsRejected() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    FrozenTagger abc = models.get("abc");
+    //one thread and a queue of one, with the thread blocked so the second call waits in the queue
+    TaggerServer busy = new TaggerServer(InProcessServerBuilder.forName("busy-test"), () -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return abc;
+    }, 1, 1).start();
+    ManagedChannel busyChannel = InProcessChannelBuilder.forName("busy-test").directExecutor().build();
+    try {
+      TaggerGrpc.TaggerFutureStub stub = TaggerGrpc.newFutureStub(busyChannel);
+      Future<Perceptron.TagResponse> running = stub.tag(request("the dog runs", 1));
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      Future<Perceptron.TagResponse> queued = stub.tag(request("the dog runs", 2));
+      Future<Perceptron.TagResponse> rejected = stub.tag(request("the dog runs", 3));
+      assertStatus(Status.Code.RESOURCE_EXHAUSTED, () -> get(rejected));
+      release.countDown();
+      assertEquals(Arrays.asList("A", "B", "C"), tags(running.get(10, TimeUnit.SECONDS)));
+      assertEquals(Arrays.asList("A", "B", "C"), tags(queued.get(10, TimeUnit.SECONDS)));
+    } finally {
+      release.countDown();
+      busyChannel.shutdownNow();
+      busy.close();
+    }
+  }
+
+  private static Perceptron.TagResponse get(Future<Perceptron.TagResponse> future) {
+    try {
+      return future.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      throw Status.fromThrowable(e.getCause()).asRuntimeException();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void assertStatus(Status.Code expected, Runnable call) {
+    try {
+      call.run();
+      fail("Expected "+expected);
+    } catch (RuntimeException e) {
+      assertEquals(expected, Status.fromThrowable(e).getCode());
+    }
+  }
+}